@@ -0,0 +1,121 @@
+package assign4;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the heap allocated on the hot path from producer to applied 
+ * transfer, for the ArrayBlockingQueue of Transaction objects and for the
+ * preallocated TransactionRing. A single producer feeds pre-generated 
+ * transactions to workers applying them with a LockingTransferEngine, and 
+ * every thread reports the bytes it allocated, as counted by the JVM's 
+ * per-thread allocation counters, along with the throughput.
+ * 
+ * Usage: java assign4.AllocationBenchmark [numTransactions] [numWorkers]
+ */
+public class AllocationBenchmark {
+
+	private static final String[] QUEUES = { "blocking", "ring" };
+	private static final int WARMUP_RUNS   = 3;
+	private static final int MEASURED_RUNS = 5;
+	
+	private static final com.sun.management.ThreadMXBean THREADS = 
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	/**
+	 * @return the number of bytes the calling thread has allocated so far
+	 */
+	private static long allocated() {
+		return THREADS.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+	
+	/**
+	 * Runs all transactions through one queue.
+	 * @param bytes incremented by the bytes allocated by every thread
+	 * @return elapsed nanoseconds from first put to last worker done
+	 */
+	private static long runOnce(final Workload workload, String queueName, 
+			int numWorkers, final AtomicLong bytes) throws InterruptedException {
+		final TransferEngine engine = 
+				new LockingTransferEngine(workload.numAccounts);
+		final CountDownLatch latch  = new CountDownLatch(numWorkers);
+		final boolean ring = queueName.equals("ring");
+		final BlockingQueue<Transaction> queue = 
+				new ArrayBlockingQueue<Transaction>(Bank.QUEUE_CAPACITY);
+		final TransactionRing slots = new TransactionRing(Bank.QUEUE_CAPACITY);
+		
+		for (int i = 0; i < numWorkers; i++) {
+			new Thread() {
+				public void run() {
+					long start = allocated();
+					try {
+						while (true) {
+							if (ring) {
+								long pos = slots.acquire();
+								int from = slots.getFrom(pos);
+								int to   = slots.getTo(pos);
+								int amt  = slots.getAmount(pos);
+								slots.release(pos);
+								if (from < 0) break;
+								engine.transfer(from, to, amt);
+							} else {
+								Transaction t = queue.take();
+								if (t == Bank.nullTrans) break;
+								engine.transfer(t.fromAccount, t.toAccount, 
+												t.amount);
+							}
+						}
+					} catch (InterruptedException e) { e.printStackTrace(); }
+					bytes.addAndGet(allocated() - start);
+					latch.countDown();
+				}
+			}.start();
+		}
+		
+		long startBytes = allocated();
+		long start = System.nanoTime();
+		for (int i = 0; i < workload.size(); i++) {
+			if (ring) {
+				slots.put(workload.from[i], workload.to[i], workload.amount[i]);
+			} else {
+				queue.put( new Transaction(workload.from[i], workload.to[i], 
+										   workload.amount[i]) );
+			}
+		}
+		for (int i = 0; i < numWorkers; i++) {
+			if (ring) {
+				slots.put(-1, 0, 0);
+			} else {
+				queue.put(Bank.nullTrans);
+			}
+		}
+		bytes.addAndGet(allocated() - startBytes);
+		latch.await();
+		return System.nanoTime() - start;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int numTrans   = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+		int numWorkers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		Workload workload = Workload.generate(numTrans, Bank.NUM_ACCTS, 0, 42);
+		
+		System.out.printf("%d transactions, %d workers%n", numTrans, numWorkers);
+		for (String queueName : QUEUES) {
+			for (int i = 0; i < WARMUP_RUNS; i++) {
+				runOnce(workload, queueName, numWorkers, new AtomicLong());
+			}
+			AtomicLong bytes = new AtomicLong();
+			long total = 0;
+			for (int i = 0; i < MEASURED_RUNS; i++) {
+				total += runOnce(workload, queueName, numWorkers, bytes);
+			}
+			System.out.printf("%-8s: %8.2f Mtransfers/s, %8.2f bytes " + 
+					"allocated per transfer%n", queueName, 
+					numTrans * 1e3 / (total / MEASURED_RUNS), 
+					bytes.get() / (double) numTrans / MEASURED_RUNS);
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package assign4;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Repeatable benchmark harness for the three stages of the Bank pipeline,
+ * measured separately: parsing, queue hand-off, and transfer application. 
+ * Each combination of parameters is run for a number of warmup iterations
+ * followed by measured iterations, reporting the median throughput and the
+ * p50/p99 latency per transaction over all measured iterations.
+ * 
+ * Parameters are given as name=value1,value2,... and every combination of
+ * the values relevant to a stage is run:
+ * 
+ *   bench      parse,handoff,transfer stages to run
+ *   file       transaction file to replay, e.g. 100k_transactions.txt; by
+ *              default a workload of n transactions is generated
+ *   n          generated transactions (1000000)
+ *   workers    parser threads for parse, consumers for handoff and 
+ *              transfer (1,4)
+ *   capacity   handoff queue capacity (Bank.QUEUE_CAPACITY)
+ *   accounts   generated account count (20)
+ *   skew       fraction of generated account picks hitting account 0 (0)
+ *   engine     lock,atomic TransferEngines for transfer; striped is also
+ *              available, as are the no-overdraft engines pessimistic (the
+ *              lock engine refusing overdrafts) and optimistic, and the
+ *              STM engines stm (backoff), stm-yield and stm-immediate
+ *   warmup     warmup iterations (2)
+ *   iterations measured iterations (5)
+ * 
+ * Parse latency is amortised over blocks of PARSE_BLOCK lines, and transfer
+ * latency is sampled for one transfer in SAMPLE_EVERY to limit the cost of
+ * reading the clock.
+ * 
+ * Usage: java assign4.BankBenchmark bench=transfer workers=1,8 skew=0,0.9
+ */
+public class BankBenchmark {
+
+	private static final int PARSE_BLOCK  = 1024;
+	private static final int SAMPLE_EVERY = 16;
+	
+	private static HashMap<String, String> params;
+	
+	/**
+	 * One benchmark iteration.
+	 */
+	private interface Trial {
+		/**
+		 * Runs the iteration, recording latencies into hist.
+		 * @return the number of operations completed
+		 */
+		public long run(LatencyHistogram hist) throws Exception;
+	}
+	
+	private static final StampedTransaction END = 
+			new StampedTransaction(-1, 0, 0, 0);
+	
+	/**
+	 * Runs warmup and measured iterations of a trial and prints one result
+	 * line.
+	 */
+	private static void measure(String label, Trial trial) throws Exception {
+		int warmup     = Integer.parseInt( get("warmup") );
+		int iterations = Integer.parseInt( get("iterations") );
+		LatencyHistogram hist = new LatencyHistogram();
+		
+		for (int i = 0; i < warmup; i++) {
+			trial.run(hist);
+		}
+		hist.reset();
+		
+		double[] rates = new double[iterations];
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			long ops   = trial.run(hist);
+			rates[i]   = ops * 1e9 / Math.max(System.nanoTime() - start, 1);
+		}
+		Arrays.sort(rates);
+		System.out.printf("%-50s %10.3f Mops/s  p50 %7d ns  p99 %7d ns%n", label, 
+				rates[iterations / 2] / 1e6, hist.getPercentile(50), 
+				hist.getPercentile(99));
+	}
+	
+	/**
+	 * Parses the whole file with numParsers threads into sinks which only
+	 * count, timing blocks of PARSE_BLOCK lines.
+	 */
+	private static Trial parseTrial(final String fileName, final int numParsers) {
+		return new Trial() {
+			public long run(LatencyHistogram hist) throws Exception {
+				final LatencyHistogram[] hists = new LatencyHistogram[numParsers];
+				TransactionSink[] sinks = new TransactionSink[numParsers];
+				for (int i = 0; i < numParsers; i++) {
+					final LatencyHistogram h = new LatencyHistogram();
+					hists[i] = h;
+					sinks[i] = new TransactionSink() {
+						long count = 0, blockStart = System.nanoTime();
+						public void accept(int from, int to, int amount) {
+							if (++count % PARSE_BLOCK == 0) {
+								long now = System.nanoTime();
+								h.record( (now - blockStart) / PARSE_BLOCK );
+								blockStart = now;
+							}
+						}
+						public void flush() {
+							return;
+						}
+					};
+				}
+				FileChannel channel = FileChannel.open( Paths.get(fileName), 
+						StandardOpenOption.READ );
+				try {
+					long count = new ParallelTransactionLoader(channel, sinks).load();
+					for (LatencyHistogram h : hists) hist.add(h);
+					return count;
+				} finally {
+					channel.close();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Passes every transaction from one producer to numWorkers consumers
+	 * through an ArrayBlockingQueue, as Bank does, recording the time each 
+	 * transaction spent between put and take. Consumers apply nothing.
+	 */
+	private static Trial handoffTrial(final Workload workload, 
+			final int numWorkers, final int capacity) {
+		return new Trial() {
+			public long run(LatencyHistogram hist) throws Exception {
+				final BlockingQueue<Transaction> queue = 
+						new ArrayBlockingQueue<Transaction>(capacity);
+				final CountDownLatch latch = new CountDownLatch(numWorkers);
+				final LatencyHistogram[] hists = new LatencyHistogram[numWorkers];
+				
+				for (int w = 0; w < numWorkers; w++) {
+					final LatencyHistogram h = new LatencyHistogram();
+					hists[w] = h;
+					new Thread() {
+						public void run() {
+							try {
+								while (true) {
+									StampedTransaction t = 
+											(StampedTransaction) queue.take();
+									if (t == END) break;
+									h.record(System.nanoTime() - t.stamp);
+								}
+							} catch (InterruptedException e) { 
+								e.printStackTrace(); 
+							}
+							latch.countDown();
+						}
+					}.start();
+				}
+				
+				for (int i = 0; i < workload.size(); i++) {
+					queue.put( new StampedTransaction(workload.from[i], 
+							workload.to[i], workload.amount[i], System.nanoTime()) );
+				}
+				for (int w = 0; w < numWorkers; w++) {
+					queue.put(END);
+				}
+				latch.await();
+				for (LatencyHistogram h : hists) hist.add(h);
+				return workload.size();
+			}
+		};
+	}
+	
+	/**
+	 * Applies the workload with numWorkers threads calling the engine 
+	 * directly, each taking every numWorkers-th transaction.
+	 */
+	private static Trial transferTrial(final Workload workload, 
+			final String engineName, final int numWorkers) {
+		return new Trial() {
+			public long run(LatencyHistogram hist) throws Exception {
+				final TransferEngine engine = newEngine(engineName, 
+														workload.numAccounts);
+				final CountDownLatch latch = new CountDownLatch(numWorkers);
+				final LatencyHistogram[] hists = new LatencyHistogram[numWorkers];
+				
+				for (int w = 0; w < numWorkers; w++) {
+					final LatencyHistogram h = new LatencyHistogram();
+					final int first = w;
+					hists[w] = h;
+					new Thread() {
+						public void run() {
+							int n = 0;
+							for (int i = first; i < workload.size(); i += numWorkers) {
+								if (++n % SAMPLE_EVERY == 0) {
+									long start = System.nanoTime();
+									engine.transfer(workload.from[i], 
+											workload.to[i], workload.amount[i]);
+									h.record(System.nanoTime() - start);
+								} else {
+									engine.transfer(workload.from[i], 
+											workload.to[i], workload.amount[i]);
+								}
+							}
+							latch.countDown();
+						}
+					}.start();
+				}
+				latch.await();
+				if (engine instanceof StripedTransferEngine) {
+					((StripedTransferEngine) engine).shutdown();
+				}
+				for (LatencyHistogram h : hists) hist.add(h);
+				return workload.size();
+			}
+		};
+	}
+	
+	static TransferEngine newEngine(String name, int numAccounts) {
+		if (name.equals("lock")) {
+			return new LockingTransferEngine(numAccounts);
+		} else if (name.equals("atomic")) {
+			return new AtomicTransferEngine( 
+					new ArrayAccountTable(numAccounts, Bank.INIT_BALANCE) );
+		} else if (name.equals("pessimistic")) {
+			return new LockingTransferEngine(numAccounts, false);
+		} else if (name.equals("optimistic")) {
+			return new OptimisticTransferEngine(numAccounts);
+		} else if (name.equals("striped")) {
+			StripedTransferEngine engine = new StripedTransferEngine(numAccounts, 
+					Runtime.getRuntime().availableProcessors());
+			engine.start();
+			return engine;
+		} else if (name.equals("stm")) {
+			return new StmTransferEngine(numAccounts, Stm.policy("backoff"));
+		} else if (name.startsWith("stm-")) {
+			return new StmTransferEngine(numAccounts, 
+					Stm.policy( name.substring(4) ));
+		}
+		throw new RuntimeException("Unknown transfer engine '" + name + "'");
+	}
+	
+	/**
+	 * Returns the workload for an account count and skew: the file if one
+	 * was given, otherwise a generated one.
+	 */
+	private static Workload workload(int numAccounts, double skew) 
+			throws Exception {
+		String file = get("file");
+		if (file.length() > 0) return Workload.load(file, numAccounts);
+		return Workload.generate(Integer.parseInt( get("n") ), numAccounts, 
+								 skew, 42);
+	}
+	
+	private static String get(String name) {
+		return params.get(name);
+	}
+	
+	private static ArrayList<String> list(String name) {
+		return new ArrayList<String>( Arrays.asList(get(name).split(",")) );
+	}
+	
+	private static void parseArgs(String[] args) {
+		params = new HashMap<String, String>();
+		params.put("bench", "parse,handoff,transfer");
+		params.put("file", "");
+		params.put("n", "1000000");
+		params.put("workers", "1,4");
+		params.put("capacity", Bank.QUEUE_CAPACITY + "");
+		params.put("accounts", "20");
+		params.put("skew", "0");
+		params.put("engine", "lock,atomic");
+		params.put("warmup", "2");
+		params.put("iterations", "5");
+		
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !params.containsKey( arg.substring(0, eq) )) {
+				throw new RuntimeException("Unknown parameter '" + arg + "'");
+			}
+			params.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		parseArgs(args);
+		ArrayList<String> benches = list("bench");
+		
+		if (benches.contains("parse")) {
+			String file = get("file");
+			if (file.length() == 0) {
+				file = workload(Integer.parseInt( list("accounts").get(0) ), 0)
+							.writeTempFile();
+			}
+			for (String workers : list("workers")) {
+				measure("parse parsers=" + workers, 
+						parseTrial(file, Integer.parseInt(workers)) );
+			}
+		}
+		
+		if (benches.contains("handoff")) {
+			Workload workload = workload(Integer.parseInt( 
+											list("accounts").get(0) ), 0);
+			for (String capacity : list("capacity")) {
+				for (String workers : list("workers")) {
+					measure("handoff capacity=" + capacity + " workers=" + workers,
+							handoffTrial(workload, Integer.parseInt(workers), 
+										 Integer.parseInt(capacity)) );
+				}
+			}
+		}
+		
+		if (benches.contains("transfer")) {
+			for (String accounts : list("accounts")) {
+				for (String skew : list("skew")) {
+					Workload workload = workload(Integer.parseInt(accounts), 
+												 Double.parseDouble(skew));
+					for (String engine : list("engine")) {
+						for (String workers : list("workers")) {
+							measure("transfer engine=" + engine + " workers=" + 
+									workers + " accounts=" + accounts + 
+									" skew=" + skew,
+									transferTrial(workload, engine, 
+												  Integer.parseInt(workers)) );
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package assign4;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the producer to worker hand-off across batch sizes. A single
+ * producer pushes pre-generated random transactions through a BatchingSink
+ * into BatchWorkers applying them with an AtomicTransferEngine, so the
+ * numbers reflect queue cost rather than parsing or lock contention.
+ * 
+ * Usage: java assign4.BatchBenchmark [numTransactions] [numWorkers]
+ */
+public class BatchBenchmark {
+
+	private static final int[] BATCH_SIZES = { 1, 4, 16, 64, 256, 1024, 4096 };
+	private static final int WARMUP_RUNS   = 3;
+	private static final int MEASURED_RUNS = 5;
+	
+	/**
+	 * Runs all transactions through one batched pipeline.
+	 * @return elapsed nanoseconds from first accept to last worker done
+	 */
+	private static long runOnce(int[] from, int[] to, int[] amount, 
+			int batchSize, int numWorkers) throws InterruptedException {
+		BlockingQueue<TransactionBatch> queue = 
+				new ArrayBlockingQueue<TransactionBatch>(
+						Math.max(1, Bank.QUEUE_CAPACITY / batchSize) );
+		TransferEngine engine = new AtomicTransferEngine(
+				new ArrayAccountTable(Bank.NUM_ACCTS, Bank.INIT_BALANCE) );
+		CountDownLatch latch  = new CountDownLatch(numWorkers);
+		
+		for (int i = 0; i < numWorkers; i++) {
+			new BatchWorker(queue, engine, latch).start();
+		}
+		
+		long start = System.nanoTime();
+		BatchingSink sink = new BatchingSink(queue, batchSize);
+		for (int i = 0; i < from.length; i++) {
+			sink.accept(from[i], to[i], amount[i]);
+		}
+		sink.flush();
+		for (int i = 0; i < numWorkers; i++) {
+			queue.put(Bank.nullBatch);
+		}
+		latch.await();
+		return System.nanoTime() - start;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int numTrans   = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+		int numWorkers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		
+		// Same workload for every batch size
+		Workload workload = Workload.generate(numTrans, Bank.NUM_ACCTS, 0, 42);
+		int[] from   = workload.from;
+		int[] to     = workload.to;
+		int[] amount = workload.amount;
+		
+		System.out.printf("%d transactions, %d workers%n", numTrans, numWorkers);
+		for (int batchSize : BATCH_SIZES) {
+			for (int i = 0; i < WARMUP_RUNS; i++) {
+				runOnce(from, to, amount, batchSize, numWorkers);
+			}
+			long best = Long.MAX_VALUE, total = 0;
+			for (int i = 0; i < MEASURED_RUNS; i++) {
+				long elapsed = runOnce(from, to, amount, batchSize, numWorkers);
+				best   = Math.min(best, elapsed);
+				total += elapsed;
+			}
+			System.out.printf("batch %5d: %8.2f Mtransfers/s avg, %8.2f best%n",
+					batchSize, numTrans * 1e3 / (total / MEASURED_RUNS),
+					numTrans * 1e3 / best);
+		}
+	}
+}
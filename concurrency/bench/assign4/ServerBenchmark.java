@@ -0,0 +1,208 @@
+package assign4;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Load generator for a Bank running with the server loader. Every
+ * connection has a sender thread, which pipelines random transfers of 1 
+ * while fewer than window of them are unacknowledged, and a receiver 
+ * thread, which turns each cumulative ack into one latency sample per
+ * request it covers: from just before the request was written to when the
+ * ack was read. Reports requests/s and latency percentiles over all
+ * connections.
+ * 
+ * Parameters are given as name=value:
+ * 
+ *   port        port the Bank listens on (9000)
+ *   requests    transfers to send over all connections (1000000)
+ *   connections concurrent connections (4)
+ *   window      unacknowledged requests per connection, rounded up to a 
+ *               power of two (1024)
+ *   accounts    transfers pick accounts below this (20)
+ * 
+ * Usage: java assign4.ServerBenchmark port=9000 connections=8 window=64
+ */
+public class ServerBenchmark {
+	
+	private static final int WRITE_BUFFER_RECORDS = 1024;
+	
+	private static HashMap<String, String> params;
+	
+	private static int get(String name) {
+		return Integer.parseInt( params.get(name) );
+	}
+	
+	private static void parseArgs(String[] args) {
+		params = new HashMap<String, String>();
+		params.put("port", "9000");
+		params.put("requests", "1000000");
+		params.put("connections", "4");
+		params.put("window", "1024");
+		params.put("accounts", "20");
+		
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !params.containsKey( arg.substring(0, eq) )) {
+				throw new RuntimeException("Unknown parameter '" + arg + "'");
+			}
+			params.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+	}
+	
+	/**
+	 * One client connection: a sender and a receiver sharing the send 
+	 * times of the requests in flight.
+	 */
+	private static class Client {
+		final SocketChannel channel;
+		final long requests;
+		final int numAccounts;
+		final int mask;
+		final Semaphore window;
+		final AtomicLongArray sentAt; // send time of request i at i & mask
+		final LatencyHistogram hist = new LatencyHistogram();
+		
+		Client(int port, long requests, int window, int numAccounts) 
+				throws IOException {
+			this.channel = SocketChannel.open( new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), port) );
+			this.channel.socket().setTcpNoDelay(true);
+			this.requests    = requests;
+			this.numAccounts = numAccounts;
+			this.mask        = window - 1;
+			this.window      = new Semaphore(window);
+			this.sentAt      = new AtomicLongArray(window);
+		}
+		
+		/**
+		 * Writes every request, flushing early whenever the window is full,
+		 * then shuts down output so the server sends its final ack.
+		 */
+		void send() throws IOException, InterruptedException {
+			ByteBuffer out = ByteBuffer.allocateDirect(
+					WRITE_BUFFER_RECORDS * BinaryTransactionFile.RECORD_BYTES)
+					.order(BinaryTransactionFile.ORDER);
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (long i = 0; i < requests; i++) {
+				if (!window.tryAcquire()) {
+					flush(out); // let the server ack what we have
+					window.acquire();
+				}
+				if (!out.hasRemaining()) flush(out);
+				sentAt.lazySet((int) (i & mask), System.nanoTime());
+				out.putInt( random.nextInt(numAccounts) );
+				out.putInt( random.nextInt(numAccounts) );
+				out.putInt(1);
+			}
+			flush(out);
+			channel.shutdownOutput();
+		}
+		
+		private void flush(ByteBuffer out) throws IOException {
+			out.flip();
+			while (out.hasRemaining()) channel.write(out);
+			out.clear();
+		}
+		
+		/**
+		 * Reads acks until every request is acknowledged, then waits for the
+		 * server to close the connection.
+		 */
+		void receive() throws IOException {
+			ByteBuffer in = ByteBuffer.allocateDirect(8 * 1024)
+					.order(BinaryTransactionFile.ORDER);
+			long acked = 0;
+			while (acked < requests) {
+				if (channel.read(in) < 0) {
+					throw new RuntimeException("Server closed the connection " +
+							"after " + acked + " of " + requests + " acks");
+				}
+				long now = System.nanoTime();
+				in.flip();
+				long count = acked;
+				while (in.remaining() >= 8) count = in.getLong();
+				in.compact();
+				for (long i = acked; i < count; i++) {
+					hist.record( now - sentAt.get((int) (i & mask)) );
+				}
+				window.release((int) (count - acked));
+				acked = count;
+			}
+			// The server closes once the sender has shut down its output
+			in.clear();
+			while (channel.read(in) >= 0) in.clear();
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Runs one side of a Client, counting down when done.
+	 */
+	private static class ClientThread extends Thread {
+		private final Client client;
+		private final boolean sender;
+		private final CountDownLatch done;
+		
+		public ClientThread(Client client, boolean sender, CountDownLatch done) {
+			this.client = client;
+			this.sender = sender;
+			this.done   = done;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				if (sender) {
+					client.send();
+				} else {
+					client.receive();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		parseArgs(args);
+		int connections = get("connections");
+		long requests   = get("requests");
+		int window = 1;
+		while (window < get("window")) window <<= 1;
+		
+		Client[] clients = new Client[connections];
+		for (int i = 0; i < connections; i++) {
+			long share = requests / connections + (i < requests % connections ? 1 : 0);
+			clients[i] = new Client(get("port"), share, window, get("accounts"));
+		}
+		
+		CountDownLatch done = new CountDownLatch(2 * connections);
+		long start = System.nanoTime();
+		for (Client client : clients) {
+			new ClientThread(client, true, done).start();
+			new ClientThread(client, false, done).start();
+		}
+		done.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		LatencyHistogram hist = new LatencyHistogram();
+		for (Client client : clients) hist.add(client.hist);
+		System.out.printf("connections=%d window=%d: %.0f requests/s, " + 
+				"latency us p50 %.1f p90 %.1f p99 %.1f p999 %.1f max %.1f%n",
+				connections, window, hist.getCount() / seconds,
+				hist.getPercentile(50) / 1e3, hist.getPercentile(90) / 1e3,
+				hist.getPercentile(99) / 1e3, hist.getPercentile(99.9) / 1e3,
+				hist.getMax() / 1e3);
+	}
+}
@@ -0,0 +1,99 @@
+package assign4;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the conflict-free wave scheduler against the lock-ordering 
+ * LockingTransferEngine on the same pre-generated random workload. Both
+ * pipelines are fed in windows of the same size, so the difference is wave
+ * scheduling and barriers versus taking two monitors per transfer.
+ * 
+ * Usage: java assign4.WaveBenchmark [numTransactions] [numWorkers] [window]
+ */
+public class WaveBenchmark {
+
+	private static final int WARMUP_RUNS   = 3;
+	private static final int MEASURED_RUNS = 5;
+	
+	/**
+	 * Runs the workload through a WaveExecutor.
+	 * @return elapsed nanoseconds
+	 */
+	private static long runWaves(int[] from, int[] to, int[] amount, 
+			int numWorkers, int window, boolean report) 
+					throws InterruptedException {
+		CountDownLatch latch  = new CountDownLatch(numWorkers);
+		WaveExecutor executor = new WaveExecutor(Bank.NUM_ACCTS, numWorkers, 
+												 window, latch);
+		long start = System.nanoTime();
+		executor.start();
+		TransactionSink sink = executor.newSink();
+		for (int i = 0; i < from.length; i++) {
+			sink.accept(from[i], to[i], amount[i]);
+		}
+		sink.flush();
+		executor.finish();
+		latch.await();
+		long elapsed = System.nanoTime() - start;
+		if (report) executor.printStats();
+		return elapsed;
+	}
+	
+	/**
+	 * Runs the workload through BatchWorkers using the LockingTransferEngine.
+	 * @return elapsed nanoseconds
+	 */
+	private static long runLocks(int[] from, int[] to, int[] amount, 
+			int numWorkers, int window) throws InterruptedException {
+		BlockingQueue<TransactionBatch> queue = 
+				new ArrayBlockingQueue<TransactionBatch>(2);
+		TransferEngine engine = new LockingTransferEngine(Bank.NUM_ACCTS);
+		CountDownLatch latch  = new CountDownLatch(numWorkers);
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < numWorkers; i++) {
+			new BatchWorker(queue, engine, latch).start();
+		}
+		BatchingSink sink = new BatchingSink(queue, window);
+		for (int i = 0; i < from.length; i++) {
+			sink.accept(from[i], to[i], amount[i]);
+		}
+		sink.flush();
+		for (int i = 0; i < numWorkers; i++) {
+			queue.put(Bank.nullBatch);
+		}
+		latch.await();
+		return System.nanoTime() - start;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int numTrans   = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+		int numWorkers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		int window     = (args.length > 2) ? Integer.parseInt(args[2]) 
+											: WaveExecutor.DEFAULT_WINDOW;
+		
+		Workload workload = Workload.generate(numTrans, Bank.NUM_ACCTS, 0, 42);
+		int[] from   = workload.from;
+		int[] to     = workload.to;
+		int[] amount = workload.amount;
+		
+		System.out.printf("%d transactions, %d workers, window %d%n", 
+				numTrans, numWorkers, window);
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			runWaves(from, to, amount, numWorkers, window, false);
+			runLocks(from, to, amount, numWorkers, window);
+		}
+		long waves = 0, locks = 0;
+		for (int i = 0; i < MEASURED_RUNS; i++) {
+			waves += runWaves(from, to, amount, numWorkers, window, 
+							  i == MEASURED_RUNS - 1);
+			locks += runLocks(from, to, amount, numWorkers, window);
+		}
+		System.out.printf("waves: %8.2f Mtransfers/s%n", 
+				numTrans * 1e3 / (waves / MEASURED_RUNS));
+		System.out.printf("locks: %8.2f Mtransfers/s%n", 
+				numTrans * 1e3 / (locks / MEASURED_RUNS));
+	}
+}
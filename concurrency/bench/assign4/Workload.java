@@ -0,0 +1,121 @@
+package assign4;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * A benchmark workload held in memory as parallel primitive arrays, either
+ * generated or loaded from a transaction file, so that every benchmark run
+ * replays exactly the same transactions.
+ */
+public class Workload {
+
+	final int[] from;
+	final int[] to;
+	final int[] amount;
+	final int numAccounts;
+	
+	private Workload(int size, int numAccounts) {
+		from   = new int[size];
+		to     = new int[size];
+		amount = new int[size];
+		this.numAccounts = numAccounts;
+	}
+	
+	public int size() {
+		return amount.length;
+	}
+	
+	/**
+	 * Generates random transactions. Each account of a transaction is the
+	 * hot account 0 with probability skew, and otherwise uniformly random.
+	 * @param size number of transactions
+	 * @param numAccounts number of accounts
+	 * @param skew fraction of account picks which go to the hot account
+	 * @param seed random seed
+	 */
+	public static Workload generate(int size, int numAccounts, double skew, 
+			long seed) {
+		Workload workload = new Workload(size, numAccounts);
+		Random random = new Random(seed);
+		for (int i = 0; i < size; i++) {
+			workload.from[i]   = pick(random, numAccounts, skew);
+			workload.to[i]     = pick(random, numAccounts, skew);
+			workload.amount[i] = random.nextInt(100) + 1;
+		}
+		return workload;
+	}
+	
+	private static int pick(Random random, int numAccounts, double skew) {
+		if (random.nextDouble() < skew) return 0;
+		return random.nextInt(numAccounts);
+	}
+	
+	/**
+	 * Loads every transaction in a text transaction file.
+	 * @param numAccounts minimum number of accounts; raised to cover every 
+	 * account ID used in the file
+	 */
+	public static Workload load(String fileName, int numAccounts) 
+			throws Exception {
+		final int[][] cols = { new int[1 << 16], new int[1 << 16], 
+							   new int[1 << 16] };
+		final int[] size = { 0, numAccounts };
+		
+		FileChannel channel = FileChannel.open( Paths.get(fileName), 
+												StandardOpenOption.READ );
+		try {
+			new MappedTransactionParser(new TransactionSink() {
+				public void accept(int from, int to, int amount) {
+					if (size[0] == cols[0].length) {
+						for (int c = 0; c < 3; c++) {
+							int[] grown = new int[cols[c].length * 2];
+							System.arraycopy(cols[c], 0, grown, 0, size[0]);
+							cols[c] = grown;
+						}
+					}
+					cols[0][size[0]] = from;
+					cols[1][size[0]] = to;
+					cols[2][size[0]] = amount;
+					size[0]++;
+					size[1] = Math.max(size[1], Math.max(from, to) + 1);
+				}
+				public void flush() {
+					return;
+				}
+			}).parse(channel, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		
+		Workload workload = new Workload(size[0], size[1]);
+		System.arraycopy(cols[0], 0, workload.from, 0, size[0]);
+		System.arraycopy(cols[1], 0, workload.to, 0, size[0]);
+		System.arraycopy(cols[2], 0, workload.amount, 0, size[0]);
+		return workload;
+	}
+	
+	/**
+	 * Writes the workload to a temporary text transaction file, deleted when
+	 * the JVM exits.
+	 * @return the file's path
+	 */
+	public String writeTempFile() throws Exception {
+		File file = File.createTempFile("workload", ".txt");
+		file.deleteOnExit();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16);
+		try {
+			for (int i = 0; i < size(); i++) {
+				writer.write(from[i] + " " + to[i] + " " + amount[i] + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		return file.getPath();
+	}
+}
@@ -6,10 +6,16 @@ public class Account {
 	private int balance;
 	private int transactions;
 	
+	// Values as of the start of snapEpoch, saved by the first change in it
+	private long snapEpoch;
+	private int snapBalance;
+	private int snapTransactions;
+	
 	public Account(int id) {
 		this.id      = id;
 		balance      = Bank.INIT_BALANCE;
 		transactions = 0;
+		snapEpoch    = 0;
 	}
 	
 	/**
@@ -32,6 +38,75 @@ public class Account {
 		transactions++;
 	}
 	
+	/**
+	 * Removes the net amount of count transactions from the account, and 
+	 * adds count to the number of transactions for this account.
+	 */
+	public void withdraw(int amount, int count) {
+		balance      -= amount;
+		transactions += count;
+	}
+	
+	/**
+	 * Adds the net amount of count transactions to the account, and adds
+	 * count to the number of transactions for this account.
+	 */
+	public void deposit(int amount, int count) {
+		balance      += amount;
+		transactions += count;
+	}
+	
+	/**
+	 * Overwrites the balance and number of transactions, e.g. with values
+	 * recovered from a journal.
+	 */
+	public void restore(int balance, int transactions) {
+		this.balance      = balance;
+		this.transactions = transactions;
+	}
+	
+	/**
+	 * Called under the Account's lock before changing it during the given
+	 * snapshot epoch. The first call in a new epoch remembers the balance
+	 * and number of transactions as they were when that epoch began.
+	 * @param epoch the current snapshot epoch
+	 */
+	public void beginEpoch(long epoch) {
+		if (snapEpoch < epoch) {
+			snapEpoch        = epoch;
+			snapBalance      = balance;
+			snapTransactions = transactions;
+		}
+	}
+	
+	/**
+	 * @param epoch a snapshot epoch which is still current
+	 * @return the balance as of the start of the epoch
+	 */
+	public int getBalanceAt(long epoch) {
+		return (snapEpoch >= epoch) ? snapBalance : balance;
+	}
+	
+	/**
+	 * @param epoch a snapshot epoch which is still current
+	 * @return the number of transactions as of the start of the epoch
+	 */
+	public int getTransactionsAt(long epoch) {
+		return (snapEpoch >= epoch) ? snapTransactions : transactions;
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	public int getBalance() {
+		return balance;
+	}
+	
+	public int getTransactions() {
+		return transactions;
+	}
+	
 	/**
 	 * Returns a string summarizing the account: its ID, balance, and number
 	 * of transactions
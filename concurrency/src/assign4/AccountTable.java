@@ -0,0 +1,51 @@
+package assign4;
+
+/**
+ * Primitive storage for the id, balance and transaction count of every 
+ * account in the Bank. Rows are addressed by account ID, and no per-account
+ * objects are created, so the heap footprint does not grow with the number
+ * of accounts. All updates are atomic and may be made from many threads.
+ */
+public interface AccountTable {
+
+	/**
+	 * @return the number of accounts (rows) in the table
+	 */
+	public int size();
+	
+	/**
+	 * @param id the account ID
+	 * @return the current balance of the account
+	 */
+	public long getBalance(int id);
+	
+	/**
+	 * @param id the account ID
+	 * @return the number of transactions applied to the account so far
+	 */
+	public long getTransactions(int id);
+	
+	/**
+	 * Atomically adds delta to the balance of the account, and increments 
+	 * its number of transactions.
+	 * @param id the account ID
+	 * @param delta amount to add, negative for a withdrawal
+	 */
+	public void add(int id, long delta);
+	
+	/**
+	 * Atomically adds delta to the balance of the account, and adds count to
+	 * its number of transactions, e.g. for the net of count transfers.
+	 * @param id the account ID
+	 * @param delta amount to add, negative for a withdrawal
+	 * @param count number of transactions delta stands for
+	 */
+	public void add(int id, long delta, long count);
+	
+	/**
+	 * Overwrites the balance and number of transactions of the account.
+	 * Not atomic with respect to concurrent adds.
+	 * @param id the account ID
+	 */
+	public void set(int id, long balance, long transactions);
+}
@@ -0,0 +1,25 @@
+package assign4;
+
+/**
+ * Read access to the balance and transaction count of every account, 
+ * regardless of how the account state is stored or updated.
+ */
+public interface AccountView {
+
+	/**
+	 * @return the number of accounts
+	 */
+	public int numAccounts();
+	
+	/**
+	 * @param id the account ID
+	 * @return the current balance of the account
+	 */
+	public long getBalance(int id);
+	
+	/**
+	 * @param id the account ID
+	 * @return the number of transactions applied to the account so far
+	 */
+	public long getTransactions(int id);
+}
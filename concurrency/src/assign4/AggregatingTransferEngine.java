@@ -0,0 +1,215 @@
+package assign4;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransferEngine decorator which maintains live aggregates as the workers
+ * apply transfers, so they can be queried during a run without scanning
+ * every account:
+ *
+ *   - the global number of transfers, in a LongAdder: O(1)
+ *   - each account's transfer volume, the sum of the amounts moved in or
+ *     out of it, in one LongAdder per account: O(1)
+ *   - every account ordered by balance, in a ConcurrentSkipListSet of
+ *     (balance, id) keys: the top n in O(log accounts + n)
+ *
+ * After each transfer the worker re-reads the balance of every account it
+ * touched and moves that account's key in the index. Moves of one account
+ * are serialized by a per-account monitor and always read the balance
+ * inside it, so once the workers are done the index matches the balances
+ * exactly; during a run it may trail them by the transfers in flight.
+ */
+public class AggregatingTransferEngine implements TransferEngine {
+	
+	private final TransferEngine engine;
+	private final LongAdder numTransfers;
+	private final LongAdder[] volumes;
+	private final Object[] indexLocks;
+	private final Key[] indexed; // key of each account in the index
+	private final ConcurrentSkipListSet<Key> byBalance;
+	
+	/**
+	 * Index entry of one account, ordered by balance, then by ID.
+	 */
+	private static final class Key implements Comparable<Key> {
+		final long balance;
+		final int id;
+		
+		Key(long balance, int id) {
+			this.balance = balance;
+			this.id      = id;
+		}
+		
+		@Override
+		public int compareTo(Key other) {
+			if (balance != other.balance) {
+				return (balance < other.balance) ? -1 : 1;
+			}
+			return Integer.compare(id, other.id);
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			return (other instanceof Key) && compareTo((Key) other) == 0;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Long.hashCode(balance) * 31 + id;
+		}
+	}
+	
+	/**
+	 * Wraps the engine, indexing every account's current balance.
+	 */
+	public AggregatingTransferEngine(TransferEngine engine) {
+		this.engine  = engine;
+		numTransfers = new LongAdder();
+		volumes      = new LongAdder[engine.numAccounts()];
+		indexLocks   = new Object[engine.numAccounts()];
+		indexed      = new Key[engine.numAccounts()];
+		byBalance    = new ConcurrentSkipListSet<Key>();
+		for (int i = 0; i < volumes.length; i++) {
+			volumes[i]    = new LongAdder();
+			indexLocks[i] = new Object();
+			indexed[i]    = new Key(engine.getBalance(i), i);
+			byBalance.add(indexed[i]);
+		}
+	}
+	
+	@Override
+	public void transfer(int from, int to, int amount) {
+		engine.transfer(from, to, amount);
+		record(from, to, amount, 1);
+	}
+	
+	@Override
+	public void transferNet(int from, int to, int amount, int count) {
+		engine.transferNet(from, to, amount, count);
+		record(from, to, amount, count);
+	}
+	
+	@Override
+	public void transferLegs(int from, int[] toAccounts, int[] amounts) {
+		engine.transferLegs(from, toAccounts, amounts);
+		numTransfers.add(amounts.length);
+		for (int i = 0; i < amounts.length; i++) {
+			volumes[from].add( Math.abs(amounts[i]) );
+			volumes[ toAccounts[i] ].add( Math.abs(amounts[i]) );
+			reindex( toAccounts[i] );
+		}
+		reindex(from);
+	}
+	
+	/**
+	 * Adds one applied transfer, or count netted ones, to the aggregates.
+	 */
+	private void record(int from, int to, int amount, int count) {
+		numTransfers.add(count);
+		volumes[from].add( Math.abs(amount) );
+		volumes[to].add( Math.abs(amount) );
+		reindex(from);
+		if (to != from) reindex(to);
+	}
+	
+	/**
+	 * Moves the account's key in the index to its current balance. The new
+	 * key is added before the old one is removed, so a concurrent reader 
+	 * may see the account twice but never miss it.
+	 */
+	private void reindex(int id) {
+		synchronized(indexLocks[id]) {
+			long balance = engine.getBalance(id);
+			if (balance != indexed[id].balance) {
+				Key current = new Key(balance, id);
+				byBalance.add(current);
+				byBalance.remove(indexed[id]);
+				indexed[id] = current;
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of transfers applied so far
+	 */
+	public long getTransferCount() {
+		return numTransfers.sum();
+	}
+	
+	/**
+	 * @param id the account ID
+	 * @return the sum of the amounts moved in or out of the account so far
+	 */
+	public long getVolume(int id) {
+		return volumes[id].sum();
+	}
+	
+	/**
+	 * Fills ids and balances with the accounts holding the highest balances,
+	 * highest first, as of the latest transfers indexed. An account being
+	 * reindexed is listed once, with the higher of its two keys.
+	 * @return the number of entries filled, at most ids.length
+	 */
+	public int getTopBalances(int[] ids, long[] balances) {
+		int n = 0;
+		Iterator<Key> it = byBalance.descendingIterator();
+		while (n < ids.length && it.hasNext()) {
+			Key key = it.next();
+			if (listed(key.id, ids, n)) continue;
+			ids[n]      = key.id;
+			balances[n] = key.balance;
+			n++;
+		}
+		return n;
+	}
+	
+	/**
+	 * @return whether id is among the first n entries of ids
+	 */
+	private static boolean listed(int id, int[] ids, int n) {
+		for (int i = 0; i < n; i++) {
+			if (ids[i] == id) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Prints the global transfer count and the top n accounts by balance,
+	 * with their volumes, to stderr.
+	 */
+	public void printTop(int n) {
+		int[] ids       = new int[n];
+		long[] balances = new long[n];
+		int found = getTopBalances(ids, balances);
+		StringBuilder line = new StringBuilder(64);
+		line.append("transfers: ").append( getTransferCount() ).append(", top");
+		for (int i = 0; i < found; i++) {
+			line.append(' ').append(ids[i]).append('=').append(balances[i])
+				.append(" (vol ").append( getVolume(ids[i]) ).append(')');
+		}
+		System.err.println(line);
+	}
+	
+	@Override
+	public void restore(int id, long balance, long transactions) {
+		engine.restore(id, balance, transactions);
+		reindex(id);
+	}
+	
+	@Override
+	public int numAccounts() {
+		return engine.numAccounts();
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return engine.getBalance(id);
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return engine.getTransactions(id);
+	}
+}
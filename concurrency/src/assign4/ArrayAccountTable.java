@@ -0,0 +1,64 @@
+package assign4;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * On-heap AccountTable backed by primitive long columns for the balance and
+ * transaction count. The account ID is the row index. Small tables give 
+ * each account its own cache line so that workers hammering neighbouring
+ * accounts do not false-share; large tables are packed densely.
+ */
+public class ArrayAccountTable implements AccountTable {
+
+	private static final int PAD_LIMIT = 4096; // max accounts to pad
+	private static final int PAD_WIDTH = 8;    // longs per 64 byte line
+	
+	private final int size;
+	private final int stride;
+	private final AtomicLongArray balances;
+	private final AtomicLongArray transactions;
+	
+	public ArrayAccountTable(int size, long initBalance) {
+		this.size = size;
+		stride    = (size <= PAD_LIMIT) ? PAD_WIDTH : 1;
+		
+		balances     = new AtomicLongArray(size * stride);
+		transactions = new AtomicLongArray(size * stride);
+		for (int i = 0; i < size; i++) {
+			balances.set(i * stride, initBalance);
+		}
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return balances.get(id * stride);
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return transactions.get(id * stride);
+	}
+	
+	@Override
+	public void add(int id, long delta) {
+		balances.getAndAdd(id * stride, delta);
+		transactions.getAndIncrement(id * stride);
+	}
+	
+	@Override
+	public void add(int id, long delta, long count) {
+		balances.getAndAdd(id * stride, delta);
+		transactions.getAndAdd(id * stride, count);
+	}
+	
+	@Override
+	public void set(int id, long balance, long transactions) {
+		balances.set(id * stride, balance);
+		this.transactions.set(id * stride, transactions);
+	}
+}
@@ -0,0 +1,62 @@
+package assign4;
+
+/**
+ * Lock-free TransferEngine. Balances and transaction counts live in the
+ * atomic primitive slots of an AccountTable and each leg of a transfer is a
+ * single fetch-and-add, so workers never block one another. The two legs 
+ * are applied independently: a reader racing with a transfer may see the 
+ * withdrawal before the deposit, but once all workers are done the balances
+ * match the locking engine's.
+ */
+public class AtomicTransferEngine implements TransferEngine {
+
+	private final AccountTable table;
+	
+	public AtomicTransferEngine(AccountTable table) {
+		this.table = table;
+	}
+	
+	@Override
+	public void transfer(int from, int to, int amount) {
+		table.add(from, -amount); // withdraw
+		table.add(to, amount);    // deposit
+	}
+	
+	@Override
+	public void transferNet(int from, int to, int amount, int count) {
+		table.add(from, -amount, count);
+		table.add(to, amount, count);
+	}
+	
+	/**
+	 * Applies each leg with its own fetch-and-adds. Nothing is locked, so
+	 * this is only atomic in the sense that every leg is eventually applied.
+	 */
+	@Override
+	public void transferLegs(int from, int[] toAccounts, int[] amounts) {
+		table.add(from, -MultiLegTransaction.total(amounts), amounts.length);
+		for (int i = 0; i < amounts.length; i++) {
+			table.add(toAccounts[i], amounts[i]);
+		}
+	}
+	
+	@Override
+	public void restore(int id, long balance, long transactions) {
+		table.set(id, balance, transactions);
+	}
+	
+	@Override
+	public int numAccounts() {
+		return table.size();
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return table.getBalance(id);
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return table.getTransactions(id);
+	}
+}
@@ -0,0 +1,48 @@
+package assign4;
+
+/**
+ * Point-in-time copy of every account's balance and transaction count.
+ */
+public class BalanceSnapshot implements AccountView {
+
+	private final long epoch;
+	private final long[] balances;
+	private final long[] transactions;
+	
+	public BalanceSnapshot(long epoch, long[] balances, long[] transactions) {
+		this.epoch        = epoch;
+		this.balances     = balances;
+		this.transactions = transactions;
+	}
+	
+	/**
+	 * @return the snapshot epoch at which the copy was cut
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+	
+	/**
+	 * @return the sum of all balances, which never changes under transfers
+	 */
+	public long getTotal() {
+		long total = 0;
+		for (long balance : balances) total += balance;
+		return total;
+	}
+	
+	@Override
+	public int numAccounts() {
+		return balances.length;
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return balances[id];
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return transactions[id];
+	}
+}
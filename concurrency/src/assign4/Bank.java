@@ -1,111 +1,875 @@
 package assign4;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /** 
  * Bank class which executes Transactions between Accounts in a thread-safe
  * manner. The Bank class itself initializes Accounts, reads in Transactions,
  * and creates Workers to carry out the transactions as they are read.
+ * 
+ * The TransferEngine used by the workers is selected with the bank.engine
+ * system property: "lock" (default) locks both Accounts per transfer, 
+ * "atomic" applies each leg with a lock-free fetch-and-add, and "striped"
+ * locks like "lock" but splits accounts found to be hot into bank.stripes
+ * sub-balances which take deposits without locking. Setting bank.overdraft
+ * to false makes the lock engine refuse transfers the from account cannot
+ * cover; "optimistic" always refuses them, validating and committing each
+ * withdrawal with a compare-and-set instead of locks. "stm" runs each
+ * transfer as a transaction of an Stm, retrying conflicting commits after
+ * the bank.stm.policy contention policy. The atomic 
+ * engine keeps its accounts in an AccountTable chosen with bank.table: 
+ * "heap" (default) primitive columns, or "direct" off-heap rows. The number
+ * of accounts is read from bank.accounts. Transaction files are read line
+ * by line, memory-mapped and parsed in place when bank.loader is "mmap", 
+ * or memory-mapped as fixed-width BinaryTransactionFile records when it is
+ * "binary", optionally by bank.parsers threads each owning one range.
+ * With bank.loader "server" the file argument is instead a port, on which
+ * a TransactionServer takes transfers from local clients over TCP.
+ * When bank.batch is greater than 1, transactions are handed to the workers
+ * in TransactionBatches of that size instead of one at a time. Setting 
+ * bank.queue to "ring" replaces the queue of Transaction objects with a
+ * preallocated TransactionRing, so nothing is allocated per transaction.
+ * 
+ * Setting bank.mode replaces the shared queue and engine with a 
+ * TransactionExecutor: "partitioned" gives each worker a partition of the
+ * accounts, "waves" runs windows of transactions as conflict-free waves,
+ * and "pipeline" runs parse, route and apply as separate stages over one
+ * preallocated ring, each waiting for the last as bank.pipeline.wait says.
+ * None takes any locks. In queue mode, bank.backend picks who runs the
+ * workers: "threads" (default) starts TransactionWorker threads stopped by 
+ * poison pills, while "platform", "forkjoin" and "virtual" run batches as 
+ * tasks on a PooledExecutor with structured shutdown.
+ * 
+ * When bank.journal names a directory, queue mode recovers the accounts 
+ * from the TransferJournal there and journals every transfer it applies,
+ * so balances carry over from one run to the next.
+ * 
+ * Setting bank.stream runs the Bank as a long-lived service: the file is
+ * tailed as it grows, or "-" reads stdin, each transfer is applied as soon
+ * as it is read, and the ingest-to-apply latency is reported, and the
+ * balances optionally written out, every bank.stream.flush milliseconds.
+ * 
+ * Setting bank.top to n maintains live aggregates in an 
+ * AggregatingTransferEngine and prints the top n balances every 
+ * bank.top.every milliseconds.
+ * 
+ * Given several transaction files, or a directory of them, the Bank runs
+ * each as an independent Tenant with its own accounts, all on one shared
+ * TenantPool of workers which takes turns on the tenants bank.tenant.quantum
+ * transactions at a time. Each tenant's summary is written to its own file
+ * named after the input with ".out" appended, in bank.out if set.
+ * 
+ * Setting bank.netting nets each batch per account pair before applying it,
+ * which needs batching and cannot be combined with the journal.
+ * 
+ * Setting bank.metrics publishes BankMetrics over JMX as 
+ * assign4:type=Bank: transfers per worker, queue depth, parse rate and, 
+ * with the lock engine, sampled monitor wait and hold times per account,
+ * sampled every bank.metrics.every milliseconds and logged if 
+ * bank.metrics.log is set.
+ * 
+ * With the lock engine, setting bank.snapshot to a number of milliseconds
+ * prints a consistent snapshot summary that often while transfers run.
  */
 public class Bank {
 	
 	static final Transaction nullTrans = new Transaction(-1,0,0); 
+	static final TransactionBatch nullBatch = new TransactionBatch(0);
 	static final int QUEUE_CAPACITY = 1000;
 	static final int INIT_BALANCE   = 1000;
-	static final int NUM_ACCTS      = 20;
+	static final int NUM_ACCTS      = Integer.getInteger("bank.accounts", 20);
+	static final String ENGINE      = System.getProperty("bank.engine", "lock");
+	static final String TABLE       = System.getProperty("bank.table", "heap");
+	static final String STM_POLICY  = System.getProperty("bank.stm.policy", "backoff");
+	static final boolean OVERDRAFT  = Boolean.parseBoolean(
+							System.getProperty("bank.overdraft", "true"));
+	static final int NUM_STRIPES    = Integer.getInteger("bank.stripes", 
+							Runtime.getRuntime().availableProcessors());
+	static final String LOADER      = System.getProperty("bank.loader", "text");
+	static final int NUM_PARSERS    = Integer.getInteger("bank.parsers", 1);
+	static final long SERVER_IDLE_MS = Long.getLong("bank.server.idle", 0);
+	static final int BATCH_SIZE     = Integer.getInteger("bank.batch", 1);
+	static final String QUEUE       = System.getProperty("bank.queue", "blocking");
+	static final String MODE        = System.getProperty("bank.mode", "queue");
+	static final String BACKEND     = System.getProperty("bank.backend", "threads");
+	static final int PIPELINE_RING  = Integer.getInteger("bank.pipeline.ring", 
+							PipelineExecutor.DEFAULT_CAPACITY);
+	static final String PIPELINE_WAIT = System.getProperty("bank.pipeline.wait", 
+							"park");
+	static final String JOURNAL_DIR = System.getProperty("bank.journal");
+	static final long CHECKPOINT_EVERY = Long.getLong("bank.checkpoint", 1000000);
+	static final boolean JOURNAL_SYNC  = Boolean.getBoolean("bank.journal.sync");
+	static final long SNAPSHOT_MS   = Long.getLong("bank.snapshot", 0);
+	static final boolean NETTING    = Boolean.getBoolean("bank.netting");
+	static final int TOP_N          = Integer.getInteger("bank.top", 0);
+	static final long TOP_EVERY_MS  = Long.getLong("bank.top.every", 1000);
+	static final boolean STREAM     = Boolean.getBoolean("bank.stream");
+	static final long STREAM_IDLE_MS  = Long.getLong("bank.stream.idle", 0);
+	static final long STREAM_FLUSH_MS = Long.getLong("bank.stream.flush", 1000);
+	static final String STREAM_BALANCES = System.getProperty("bank.stream.balances");
+	static final boolean METRICS    = Boolean.getBoolean("bank.metrics");
+	static final long METRICS_EVERY_MS = Long.getLong("bank.metrics.every", 1000);
+	static final boolean METRICS_LOG   = Boolean.getBoolean("bank.metrics.log");
+	static final int METRICS_SAMPLE    = Integer.getInteger("bank.metrics.sample", 256);
+	static final int TENANT_QUANTUM = Integer.getInteger("bank.tenant.quantum", 
+							TenantPool.DEFAULT_QUANTUM);
+	static final String OUT_DIR     = System.getProperty("bank.out");
 	
 	private int NUM_WORKERS;
-	private ArrayList<Account> accounts;
+	private TransferEngine engine;
+	private TransactionExecutor executor;
+	private TransferJournal journal;
+	private LockingTransferEngine snapshotEngine;
+	private StripedTransferEngine stripedEngine;
+	private StmTransferEngine stmEngine;
+	private ConditionalTransferEngine conditionalEngine;
+	private AggregatingTransferEngine aggregates;
+	private BankMetrics metrics;
+	private ArrayList<PairNetter> netters;
+	private ArrayList<LatencyHistogram> latencies;
+	private long lastReportNanos;    // StreamReporter only
+	private StreamReporter streamReporter;
+	private AccountView view;
+	private TransactionSink queueSink;
 	BlockingQueue<Transaction> transactionQueue;
+	BlockingQueue<TransactionBatch> batchQueue;
+	TransactionRing ring;
 	private CountDownLatch latch;
+	private Exception loadFailure;
 	
 	public Bank(int numWorkers) {
 		// Determine the number of workers necessary, set latch for coordination
 		NUM_WORKERS = numWorkers;
 		latch = new CountDownLatch(numWorkers);
 		
-		// Initialize the blocking queue
-		transactionQueue = new ArrayBlockingQueue<Transaction>(QUEUE_CAPACITY);
+		// Reject unsupported combinations before any worker is started
+		boolean threadQueue = MODE.equals("queue") && BACKEND.equals("threads");
+		if (NETTING && !(threadQueue && BATCH_SIZE > 1 && JOURNAL_DIR == null)) {
+			throw new RuntimeException("Netting requires queue mode, the " + 
+					"threads backend and bank.batch > 1, without the journal");
+		}
+		if (SNAPSHOT_MS > 0 && !(MODE.equals("queue") && ENGINE.equals("lock"))) {
+			throw new RuntimeException("Live snapshots require queue mode " + 
+									   "and the lock engine");
+		}
+		boolean conditional = !OVERDRAFT || ENGINE.equals("optimistic");
+		if (!OVERDRAFT && !ENGINE.equals("lock") && !ENGINE.equals("optimistic")) {
+			throw new RuntimeException("Refusing overdrafts requires the lock " + 
+									   "or optimistic engine");
+		}
+		if (conditional && !MODE.equals("queue")) {
+			throw new RuntimeException("Refusing overdrafts requires queue mode");
+		}
+		if (conditional && (NETTING || JOURNAL_DIR != null)) {
+			throw new RuntimeException("Refusing overdrafts cannot be " + 
+									   "combined with netting or the journal");
+		}
+		if (TOP_N > 0 && !(MODE.equals("queue") && !conditional && !NETTING)) {
+			throw new RuntimeException("Live aggregates require queue mode " + 
+					"and cannot count refused or netted transfers");
+		}
+		if (!QUEUE.equals("blocking") && !QUEUE.equals("ring")) {
+			throw new RuntimeException("Unknown queue '" + QUEUE + "'");
+		}
+		if (QUEUE.equals("ring") && !(threadQueue && BATCH_SIZE == 1 && !STREAM)) {
+			throw new RuntimeException("The ring queue requires queue mode, " + 
+					"the threads backend and unbatched transactions, " + 
+					"without streaming");
+		}
+		if (STREAM && !(threadQueue && BATCH_SIZE == 1)) {
+			throw new RuntimeException("Streaming requires queue mode, the " + 
+					"threads backend and unbatched transactions");
+		}
+		if (METRICS && !threadQueue) {
+			throw new RuntimeException("Metrics require queue mode and the " + 
+									   "threads backend");
+		}
+		
+		if (threadQueue) {
+			// Initialize the blocking queue, Accounts and TransactionWorkers
+			initQueue();
+			initAccounts();
+			initMetrics();
+			initWorkers();
+		} else if (MODE.equals("queue")) {
+			// Accounts only, workers are supplied by the executor backend
+			initAccounts();
+			executor = new PooledExecutor(BACKEND, engine, numWorkers, 
+										  BATCH_SIZE, latch);
+		} else if (JOURNAL_DIR != null) {
+			throw new RuntimeException("The journal requires queue mode");
+		} else if (MODE.equals("partitioned")) {
+			// Partition workers own both the accounts and their inboxes
+			executor = new PartitionedExecutor(NUM_ACCTS, numWorkers, 
+											   BATCH_SIZE, latch);
+		} else if (MODE.equals("waves")) {
+			executor = new WaveExecutor(NUM_ACCTS, numWorkers, BATCH_SIZE, latch);
+		} else if (MODE.equals("pipeline")) {
+			// Parse, route and apply stages over one ring
+			executor = new PipelineExecutor(NUM_ACCTS, numWorkers, PIPELINE_RING,
+					PipelineExecutor.waitStrategy(PIPELINE_WAIT), latch);
+		} else {
+			throw new RuntimeException("Unknown mode '" + MODE + "'");
+		}
 		
-		// Initialize Accounts and TransactionWorkers
-		initAccounts();
-		initWorkers();
+		if (executor != null) {
+			view = executor;
+			executor.start();
+		}
+		if (SNAPSHOT_MS > 0) {
+			new SnapshotReporter().start();
+		}
+		if (STREAM) {
+			lastReportNanos = System.nanoTime();
+			streamReporter = new StreamReporter();
+			streamReporter.start();
+		}
+		if (TOP_N > 0) {
+			new LeaderboardReporter().start();
+		}
+	}
+	
+	/**
+	 * Initializes the blocking queue, which holds about QUEUE_CAPACITY 
+	 * transactions whether or not they are batched, or the ring.
+	 */
+	private void initQueue() {
+		if (QUEUE.equals("ring")) {
+			ring = new TransactionRing(QUEUE_CAPACITY);
+			queueSink = new RingSink();
+		} else if (BATCH_SIZE > 1) {
+			batchQueue = new ArrayBlockingQueue<TransactionBatch>(
+					Math.max(1, QUEUE_CAPACITY / BATCH_SIZE) );
+		} else {
+			transactionQueue = new ArrayBlockingQueue<Transaction>(QUEUE_CAPACITY);
+			queueSink = new QueueSink();
+		}
 	}
 
 	/**
-	 * Initializes the Bank instance account array array of NUM_ACCTS Accounts, 
-	 * each with INIT_BALANCE and an ID corresponding to their array index.
+	 * Creates the BankMetrics published over JMX, if enabled, watching the
+	 * workers' queue and, with the lock engine, timing a sample of monitor
+	 * waits and holds.
+	 */
+	private void initMetrics() {
+		if (!METRICS) return;
+		metrics = new BankMetrics(NUM_WORKERS, METRICS_EVERY_MS, METRICS_LOG);
+		if (transactionQueue != null) {
+			metrics.setQueue(transactionQueue);
+		} else if (batchQueue != null) {
+			metrics.setQueue(batchQueue);
+		}
+		if (snapshotEngine != null) {
+			LockMetrics lockMetrics = new LockMetrics(NUM_ACCTS, METRICS_SAMPLE);
+			snapshotEngine.setLockMetrics(lockMetrics);
+			metrics.setLockMetrics(lockMetrics);
+		}
+		metrics.start();
+	}
+
+	/**
+	 * Initializes the TransferEngine holding NUM_ACCTS accounts, each with 
+	 * INIT_BALANCE and an ID corresponding to their index, or with the 
+	 * state recovered from the journal.
 	 */
 	private void initAccounts() {
-		accounts = new ArrayList<Account>(NUM_ACCTS);
-		for (int i = 0; i < NUM_ACCTS; i++) {
-			accounts.add(i, new Account(i) );
+		if (ENGINE.equals("lock")) {
+			snapshotEngine = new LockingTransferEngine(NUM_ACCTS, OVERDRAFT);
+			engine = snapshotEngine;
+			if (!OVERDRAFT) conditionalEngine = snapshotEngine;
+		} else if (ENGINE.equals("optimistic")) {
+			conditionalEngine = new OptimisticTransferEngine(NUM_ACCTS);
+			engine = conditionalEngine;
+		} else if (ENGINE.equals("atomic")) {
+			engine = new AtomicTransferEngine( createTable() );
+		} else if (ENGINE.equals("striped")) {
+			stripedEngine = new StripedTransferEngine(NUM_ACCTS, NUM_STRIPES);
+			stripedEngine.start();
+			engine = stripedEngine;
+		} else if (ENGINE.equals("stm")) {
+			stmEngine = new StmTransferEngine(NUM_ACCTS, Stm.policy(STM_POLICY));
+			engine = stmEngine;
+		} else {
+			throw new RuntimeException("Unknown transfer engine '" + ENGINE + "'");
 		}
+		if (JOURNAL_DIR != null) {
+			initJournal();
+		}
+		if (TOP_N > 0) {
+			aggregates = new AggregatingTransferEngine(engine);
+			engine = aggregates;
+		}
+		view = engine;
 		return;
 	}
 	
 	/**
-	 * Initializes and calls .start() on NUM_WORKERS TransactionWorkers
+	 * Opens the journal, restores every account to its recovered state, and
+	 * wraps the engine so that all transfers are journaled.
+	 */
+	private void initJournal() {
+		try {
+			journal = new TransferJournal(JOURNAL_DIR, NUM_ACCTS, INIT_BALANCE,
+										  CHECKPOINT_EVERY, JOURNAL_SYNC);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open journal", e);
+		}
+		for (int i = 0; i < NUM_ACCTS; i++) {
+			engine.restore(i, journal.getBalance(i), journal.getTransactions(i));
+		}
+		engine = new JournaledTransferEngine(engine, journal);
+	}
+	
+	/**
+	 * Creates the AccountTable specified by the TABLE property, holding
+	 * NUM_ACCTS accounts each with INIT_BALANCE.
+	 * @return the new AccountTable
+	 */
+	static AccountTable createTable() {
+		if (TABLE.equals("heap")) {
+			return new ArrayAccountTable(NUM_ACCTS, INIT_BALANCE);
+		} else if (TABLE.equals("direct")) {
+			return new DirectAccountTable(NUM_ACCTS, INIT_BALANCE);
+		}
+		throw new RuntimeException("Unknown account table '" + TABLE + "'");
+	}
+	
+	/**
+	 * Initializes and calls .start() on NUM_WORKERS TransactionWorkers, or
+	 * BatchWorkers when transactions are batched, each with its own 
+	 * PairNetter when netting, or RingWorkers with the ring queue
 	 */
 	private void initWorkers() {
-		TransactionWorker currWorker = null;
+		if (NETTING) {
+			netters = new ArrayList<PairNetter>(NUM_WORKERS);
+		}
+		if (STREAM) {
+			latencies = new ArrayList<LatencyHistogram>(NUM_WORKERS);
+		}
+		Thread currWorker = null;
 		for (int i = 0; i < NUM_WORKERS; i++) {
-			currWorker = new TransactionWorker();
+			BankMetrics.WorkerCounter counter = 
+					(metrics != null) ? metrics.newWorker() : null;
+			if (netters != null) {
+				PairNetter netter = new PairNetter(NUM_ACCTS, BATCH_SIZE);
+				netters.add(netter);
+				currWorker = new BatchWorker(batchQueue, engine, latch, netter, 
+											 counter);
+			} else if (ring != null) {
+				currWorker = new RingWorker(counter);
+			} else if (BATCH_SIZE > 1) {
+				currWorker = new BatchWorker(batchQueue, engine, latch, null, 
+											 counter);
+			} else {
+				LatencyHistogram latency = null;
+				if (latencies != null) {
+					latency = new LatencyHistogram();
+					latencies.add(latency);
+				}
+				currWorker = new TransactionWorker(latency, counter);
+			}
 			currWorker.start();
 		}
 	}
 	
 	/**
-	 * Reads transaction information from the specified file, and creates and
-	 * enqueues the corresponding Transaction objects into the transactionQueue.
-	 * Also adds NUM_WORKERS nullTransaction references to the end of the queue
-	 * to signal to the workers that there are no more Transactions.
+	 * Returns a sink for one producer thread: the shared QueueSink, a new
+	 * BatchingSink when transactions are batched, or one of the executor's
+	 * sinks. With metrics, queue sinks count what they accept as parsed.
+	 */
+	private TransactionSink newSink() {
+		TransactionSink sink;
+		if (executor != null) {
+			return executor.newSink();
+		} else if (BATCH_SIZE > 1) {
+			sink = new BatchingSink(batchQueue, BATCH_SIZE);
+		} else {
+			sink = queueSink;
+		}
+		return (metrics != null) ? metrics.countParsed(sink) : sink;
+	}
+	
+	/**
+	 * Reads transaction information from the specified file, using the 
+	 * loader chosen by the LOADER property, and passes each transaction to 
+	 * a sink. Also adds NUM_WORKERS nullTransaction (or nullBatch) references
+	 * to the end of the queue to signal to the workers that there are no more 
+	 * Transactions. If loading fails, the workers are still stopped and the
+	 * failure is kept for main to report instead of the balances.
 	 * @param fileName The (path/) filename of the transaction file to be parsed
 	 */
 	private void getTransactions(String fileName) {
-		Transaction newTrans = null;
+		try {
+			if (STREAM) {
+				readStreamTransactions(fileName);
+			} else if (LOADER.equals("text")) {
+				readTextTransactions(fileName);
+			} else if (LOADER.equals("mmap")) {
+				readMappedTransactions(fileName);
+			} else if (LOADER.equals("binary")) {
+				readBinaryTransactions(fileName);
+			} else if (LOADER.equals("server")) {
+				serveTransactions( Integer.parseInt(fileName) );
+			} else {
+				throw new RuntimeException("Unknown loader '" + LOADER + "'");
+			}
+		} catch (Exception e) { loadFailure = e; } // reported by main
+		
+		// Finally, add one null transaction per worker so they know when to stop
+		if (executor != null) {
+			try {
+				executor.finish();
+			} catch (InterruptedException e) { e.printStackTrace(); }
+			return;
+		}
+		for (int i = 0; i < NUM_WORKERS; i++) {
+			try {
+				if (ring != null) {
+					ring.put(nullTrans.fromAccount, 0, 0);
+				} else if (BATCH_SIZE > 1) {
+					batchQueue.put( nullBatch );
+				} else {
+					transactionQueue.put( nullTrans );
+				}
+			} catch (InterruptedException e) { e.printStackTrace(); }
+		}
+		return;
+	}
+	
+	/**
+	 * Reads the transaction file line by line, splitting each line into its
+	 * from, to, and amount values. A line may continue with further to and
+	 * amount pairs, making it one MultiLegTransaction which pays every to 
+	 * account from the same from account atomically.
+	 * @param fileName The (path/) filename of the transaction file to be parsed
+	 */
+	private void readTextTransactions(String fileName) throws Exception {
 		int from, to, amount;
 		String line = null;
+		TransactionSink sink = newSink();
 		
-		try { // Create one transaction per line, and enqueue
-			BufferedReader reader = new BufferedReader( new FileReader(fileName) );
-			
+		// Create one transaction per line, and enqueue
+		BufferedReader reader = new BufferedReader( new FileReader(fileName) );
+		try {
 			while ((line = reader.readLine()) != null) {
 			   
-				String[] parts = line.split("\\s"); // from, to, amount
-			    if (parts.length != 3) {
-			    	throw new RuntimeException("3 values expected for all input lines");
+				String[] parts = line.split("\\s"); // from, (to, amount)+
+			    if (parts.length < 3 || parts.length % 2 == 0) {
+			    	throw new RuntimeException("from followed by to and amount " + 
+			    			"pairs expected for all input lines");
+			    }
+			    from = Integer.parseInt(parts[0]);
+			    if (parts.length > 3) {
+			    	readLegs(from, parts, sink);
+			    	continue;
 			    }
-			    from   = Integer.parseInt(parts[0]);
 			    to     = Integer.parseInt(parts[1]);
 			    amount = Integer.parseInt(parts[2]);
-			    newTrans = new Transaction(from, to, amount);
-			    transactionQueue.put(newTrans);
+			    sink.accept(from, to, amount);
 			    
 			}
+			sink.flush();
+		} finally {
 			reader.close();
-		} catch (Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	/**
+	 * Passes the to and amount pairs of a multi-leg line to the sink as one
+	 * transaction.
+	 * @param parts the fields of the line, from first
+	 */
+	private static void readLegs(int from, String[] parts, TransactionSink sink) 
+			throws InterruptedException {
+		if (!(sink instanceof MultiLegSink)) {
+			throw new RuntimeException("Multi-leg transactions require queue " + 
+					"mode, the threads backend and unbatched transactions");
+		}
+		int legs = parts.length / 2;
+		int[] toAccounts = new int[legs];
+		int[] amounts    = new int[legs];
+		for (int i = 0; i < legs; i++) {
+			toAccounts[i] = Integer.parseInt(parts[2 * i + 1]);
+			amounts[i]    = Integer.parseInt(parts[2 * i + 2]);
+		}
+		((MultiLegSink) sink).acceptLegs(from, toAccounts, amounts);
+	}
+	
+	/**
+	 * Follows a growing transaction file, or stdin when fileName is "-", 
+	 * enqueueing each transaction stamped with the time it was read. The 
+	 * bounded transactionQueue blocks this reader whenever the workers fall
+	 * behind, so nothing is buffered without limit. Returns once stdin ends,
+	 * or once a file has not grown for STREAM_IDLE_MS (if set).
+	 * @param fileName The (path/) filename of the transaction file, or "-"
+	 */
+	private void readStreamTransactions(String fileName) throws Exception {
+		boolean stdin = fileName.equals("-");
+		InputStream in = stdin ? System.in : new FileInputStream(fileName);
+		TransactionSink sink = new StreamSink();
+		if (metrics != null) sink = metrics.countParsed(sink);
+		try {
+			new TransactionTailer(in, sink, !stdin, STREAM_IDLE_MS).run();
+		} finally {
+			if (!stdin) in.close();
+		}
+	}
+	
+	/**
+	 * Memory-maps the transaction file and parses it without creating any
+	 * intermediate Strings, splitting it across NUM_PARSERS parser threads.
+	 * Reports the parse throughput on stderr.
+	 * @param fileName The (path/) filename of the transaction file to be parsed
+	 */
+	private void readMappedTransactions(String fileName) throws Exception {
+		FileChannel channel = FileChannel.open( Paths.get(fileName), 
+												StandardOpenOption.READ );
+		try {
+			long start = System.nanoTime();
+			long size  = channel.size();
+			long count;
+			if (NUM_PARSERS > 1) {
+				TransactionSink[] sinks = new TransactionSink[NUM_PARSERS];
+				for (int i = 0; i < NUM_PARSERS; i++) sinks[i] = newSink();
+				count = new ParallelTransactionLoader(channel, sinks).load();
+			} else {
+				count = new MappedTransactionParser( newSink() )
+								.parse(channel, 0, size);
+			}
+			reportParseRate(count, size, System.nanoTime() - start);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Memory-maps a binary transaction file (see BinaryTransactionFile) and
+	 * reads its fixed-width records directly, with no text to decode. With
+	 * NUM_PARSERS > 1 the records are split between that many threads.
+	 * Reports the read throughput on stderr.
+	 * @param fileName The (path/) filename of the binary transaction file
+	 */
+	private void readBinaryTransactions(String fileName) throws Exception {
+		FileChannel channel = FileChannel.open( Paths.get(fileName), 
+												StandardOpenOption.READ );
+		try {
+			long start = System.nanoTime();
+			BinaryTransactionFile.Reader reader = 
+					new BinaryTransactionFile.Reader(channel);
+			TransactionSink[] sinks = new TransactionSink[NUM_PARSERS];
+			for (int i = 0; i < NUM_PARSERS; i++) sinks[i] = newSink();
+			long count = reader.readAll(sinks);
+			reportParseRate(count, channel.size(), System.nanoTime() - start);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Serves transfers from local clients on the loopback port until none
+	 * has been connected for SERVER_IDLE_MS, passing each to the workers
+	 * as it is decoded.
+	 * @param port port to listen on, 0 for any free port
+	 */
+	private void serveTransactions(int port) throws Exception {
+		TransactionServer server = new TransactionServer(port, newSink(), 
+														 NUM_ACCTS, SERVER_IDLE_MS);
+		System.err.println("server: listening on port " + server.getPort());
+		server.run();
+		server.printStats();
+	}
+	
+	/**
+	 * Prints the number of transactions parsed and the parse throughput in 
+	 * MB/s to stderr, keeping stdout free for the account summary.
+	 * @param count number of transactions parsed
+	 * @param bytes number of bytes parsed
+	 * @param nanos time taken to parse them
+	 */
+	static void reportParseRate(long count, long bytes, long nanos) {
+		double seconds = Math.max(nanos, 1) / 1e9;
+		System.err.printf("parsed %d transactions (%.1f MB) in %.3f s: %.1f MB/s%n",
+				count, bytes / 1e6, seconds, bytes / 1e6 / seconds);
+	}
+	
+	/**
+	 * Prints how many transactions the workers' PairNetters collapsed into
+	 * how many net transfers, i.e. lock acquisitions, to stderr.
+	 */
+	private void reportNetting() {
+		long in = 0, out = 0;
+		for (PairNetter netter : netters) {
+			in  += netter.getTransfersIn();
+			out += netter.getTransfersOut();
+		}
+		System.err.printf("netted %d transactions into %d transfers " + 
+				"(%.1f%% fewer)%n", in, out, 100.0 * (in - out) / Math.max(in, 1));
+	}
+	
+	/**
+	 * Prints the number of transfers refused for insufficient funds, and for
+	 * the optimistic engine the number of retried commits, to stderr.
+	 */
+	private void reportRejected() {
+		System.err.printf("rejected %d transfers for insufficient funds", 
+						  conditionalEngine.getRejected());
+		if (conditionalEngine instanceof OptimisticTransferEngine) {
+			System.err.printf(", retried %d commits", 
+					((OptimisticTransferEngine) conditionalEngine).getRetries());
+		}
+		System.err.println();
+	}
+	
+	/**
+	 * Prints a summary of each account: its ID, balance, and number of
+	 * transactions. Rows are streamed straight from the AccountView through
+	 * one buffered writer, so no per-account objects are built.
+	 */
+	public void printAccounts() {
+		writeAccounts(view, System.out);
+	}
+	
+	/**
+	 * Writes the summary of each account in the given view to a stream.
+	 */
+	static void writeAccounts(AccountView view, OutputStream stream) {
+		PrintWriter out = new PrintWriter( new BufferedWriter(
+				new OutputStreamWriter(stream), 1 << 16) );
+		StringBuilder line = new StringBuilder(64);
 		
-		// Finally, add one null transaction per worker so they know when to stop
-		for (int i = 0; i < NUM_WORKERS; i++) {
+		for (int i = 0; i < view.numAccounts(); i++) {
+			line.setLength(0);
+			line.append("acct: ").append(i)
+				.append(" bal: ").append( view.getBalance(i) )
+				.append(" trans: ").append( view.getTransactions(i) );
+			out.println(line);
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Sink which wraps each transaction in a Transaction object, or a
+	 * MultiLegTransaction, and enqueues it on the transactionQueue.
+	 */
+	private class QueueSink implements MultiLegSink {
+		@Override
+		public void accept(int from, int to, int amount) 
+				throws InterruptedException {
+			transactionQueue.put( new Transaction(from, to, amount) );
+		}
+		
+		@Override
+		public void acceptLegs(int from, int[] toAccounts, int[] amounts) 
+				throws InterruptedException {
+			transactionQueue.put( new MultiLegTransaction(from, toAccounts, 
+														  amounts) );
+		}
+		
+		@Override
+		public void flush() {
+			return; // nothing buffered
+		}
+	}
+	
+	/**
+	 * Sink which copies each transaction into the next free slot of the 
+	 * ring, allocating nothing.
+	 */
+	private class RingSink implements TransactionSink {
+		@Override
+		public void accept(int from, int to, int amount) {
+			ring.put(from, to, amount);
+		}
+		
+		@Override
+		public void flush() {
+			return; // nothing buffered
+		}
+	}
+	
+	/**
+	 * Worker which acquires transactions from the ring, applies them, and 
+	 * releases their slots. A slot whose from account is that of nullTrans
+	 * tells it to stop and decrement the Bank latch.
+	 */
+	private class RingWorker extends Thread {
+		
+		private final BankMetrics.WorkerCounter counter;
+		
+		/**
+		 * @param counter counts the transfers applied, or null
+		 */
+		public RingWorker(BankMetrics.WorkerCounter counter) {
+			this.counter = counter;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					long pos   = ring.acquire();
+					int from   = ring.getFrom(pos);
+					int to     = ring.getTo(pos);
+					int amount = ring.getAmount(pos);
+					ring.release(pos);
+					if (from == nullTrans.fromAccount) break; // done
+					
+					engine.transfer(from, to, amount);
+					if (counter != null) counter.add(1);
+				}
+				latch.countDown(); // signal done
+				
+			} catch (Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	/**
+	 * Sink which enqueues each transaction as a StampedTransaction carrying
+	 * the time it was read.
+	 */
+	private class StreamSink implements TransactionSink {
+		@Override
+		public void accept(int from, int to, int amount) 
+				throws InterruptedException {
+			transactionQueue.put( new StampedTransaction(from, to, amount, 
+														 System.nanoTime()) );
+		}
+		
+		@Override
+		public void flush() {
+			return; // nothing buffered
+		}
+	}
+	
+	/**
+	 * Merges and resets the workers' latency histograms, printing how many 
+	 * transfers were applied since the last report, at what rate, and their 
+	 * ingest-to-apply latency to stderr. When STREAM_BALANCES is set, the 
+	 * account summary is also written there, replacing the previous one
+	 * atomically; with the lock engine it is a consistent snapshot.
+	 */
+	private void reportStream() throws IOException {
+		LatencyHistogram merged = new LatencyHistogram();
+		for (LatencyHistogram hist : latencies) {
+			synchronized(hist) {
+				merged.add(hist);
+				hist.reset();
+			}
+		}
+		long now = System.nanoTime();
+		double seconds = Math.max(now - lastReportNanos, 1) / 1e9;
+		lastReportNanos = now;
+		System.err.printf("stream: applied %d (%.0f/s), latency p50 %.1f us " + 
+				"p99 %.1f us max %.1f us%n", merged.getCount(), 
+				merged.getCount() / seconds, merged.getPercentile(50) / 1e3,
+				merged.getPercentile(99) / 1e3, merged.getMax() / 1e3);
+		
+		if (STREAM_BALANCES != null) {
+			AccountView balances = (snapshotEngine != null) ? 
+					snapshotEngine.snapshot() : view;
+			Path target = Paths.get(STREAM_BALANCES);
+			Path tmp    = Paths.get(STREAM_BALANCES + ".tmp");
+			OutputStream out = Files.newOutputStream(tmp);
+			try {
+				writeAccounts(balances, out);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+					   StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+	
+	/**
+	 * Daemon thread which calls reportStream every STREAM_FLUSH_MS until the
+	 * workers are done, then once more for the tail of the stream. Only this
+	 * thread reports, so reports never overlap; main joins it.
+	 */
+	private class StreamReporter extends Thread {
+		
+		public StreamReporter() {
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
 			try {
-				transactionQueue.put( nullTrans );
+				while (!latch.await(STREAM_FLUSH_MS, TimeUnit.MILLISECONDS)) {
+					reportStream();
+				}
+				reportStream();
+			} catch (Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	/**
+	 * Daemon thread which prints the live top TOP_N balances every 
+	 * TOP_EVERY_MS until the workers are done.
+	 */
+	private class LeaderboardReporter extends Thread {
+		
+		public LeaderboardReporter() {
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (!latch.await(TOP_EVERY_MS, TimeUnit.MILLISECONDS)) {
+					aggregates.printTop(TOP_N);
+				}
 			} catch (InterruptedException e) { e.printStackTrace(); }
 		}
-		return;
 	}
 	
 	/**
-	 * Calls toString() on each Account in the accounts list
+	 * Daemon thread which takes a live snapshot every SNAPSHOT_MS until the
+	 * workers are done, printing its total, which must always equal 
+	 * NUM_ACCTS * INIT_BALANCE, and how long it took to stderr.
 	 */
-	public void printAccounts() {
-		for (Account account : accounts) {
-			System.out.println( account.toString() );
+	private class SnapshotReporter extends Thread {
+		
+		public SnapshotReporter() {
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (!latch.await(SNAPSHOT_MS, TimeUnit.MILLISECONDS)) {
+					long start = System.nanoTime();
+					BalanceSnapshot snapshot = snapshotEngine.snapshot();
+					long trans = 0;
+					for (int i = 0; i < snapshot.numAccounts(); i++) {
+						trans += snapshot.getTransactions(i);
+					}
+					System.err.printf("snapshot %d: total %d (expected %d), " + 
+							"%d transfers, %.1f us%n", snapshot.getEpoch(), 
+							snapshot.getTotal(), (long) NUM_ACCTS * INIT_BALANCE,
+							trans / 2, (System.nanoTime() - start) / 1e3);
+				}
+			} catch (InterruptedException e) { e.printStackTrace(); }
 		}
 	}
 	
@@ -114,6 +878,20 @@ public class Bank {
 	 */
 	private class TransactionWorker extends Thread{
 		
+		private final LatencyHistogram latency;
+		private final BankMetrics.WorkerCounter counter;
+		
+		/**
+		 * @param latency records the ingest-to-apply latency of every 
+		 * StampedTransaction, or null when not streaming
+		 * @param counter counts the transfers applied, or null
+		 */
+		public TransactionWorker(LatencyHistogram latency, 
+				BankMetrics.WorkerCounter counter) {
+			this.latency = latency;
+			this.counter = counter;
+		}
+		
 		/**
 		 * Takes Transactions from the transactionQueue and completes them
 		 * When Worker gets a nullTrans Transaction, it stops working and 
@@ -123,35 +901,29 @@ public class Bank {
 		public void run() {
 			try {
 				Transaction currTransaction;
-				Account firstLock, secondLock;
-				int amount;
 				
 				while (true) {
 					currTransaction = transactionQueue.take();
 					if (currTransaction == nullTrans) break; // done 
 					
-					// Determine order of locks, lowest ID first for consistency
-					if (currTransaction.fromAccount < 
-							currTransaction.toAccount) {
-						firstLock  = accounts.get( currTransaction.fromAccount );
-						secondLock = accounts.get( currTransaction.toAccount );
-					} else if (currTransaction.fromAccount > 
-							currTransaction.toAccount) {
-						firstLock  = accounts.get( currTransaction.toAccount );
-						secondLock = accounts.get( currTransaction.fromAccount );
-					} else { // to and from are the same
-						firstLock  = accounts.get( currTransaction.fromAccount );
-						secondLock = accounts.get( currTransaction.fromAccount );
+					if (currTransaction instanceof MultiLegTransaction) {
+						MultiLegTransaction multi = 
+								(MultiLegTransaction) currTransaction;
+						engine.transferLegs(multi.fromAccount, 
+											multi.toAccounts, multi.amounts);
+						if (counter != null) counter.add(multi.amounts.length);
+						continue;
 					}
-					
-					// Carry out the actual transaction, thread safe
-					synchronized(firstLock) {
-						synchronized(secondLock) {
-							amount = currTransaction.amount;
-							accounts.get(currTransaction.fromAccount).withdraw(amount);
-							accounts.get(currTransaction.toAccount).deposit(amount);
+					engine.transfer(currTransaction.fromAccount, 
+									currTransaction.toAccount,
+									currTransaction.amount);
+					if (counter != null) counter.add(1);
+					if (latency != null) {
+						long stamp = ((StampedTransaction) currTransaction).stamp;
+						synchronized(latency) {
+							latency.record(System.nanoTime() - stamp);
 						}
-					}			
+					}
 				}
 				latch.countDown(); // signal done
 				
@@ -159,10 +931,77 @@ public class Bank {
 		}
 	}
 		
+	/**
+	 * Runs every transaction file given, and every file in each directory
+	 * given, as an independent Tenant on one shared TenantPool, writing each
+	 * tenant's account summary to its own file.
+	 * @param args the files and directories, then the number of workers
+	 */
+	private static void runTenants(String[] args) {
+		if (!MODE.equals("queue") || !LOADER.equals("text") || !OVERDRAFT ||
+				JOURNAL_DIR != null || STREAM || NETTING || TOP_N > 0 || 
+				SNAPSHOT_MS > 0 || BATCH_SIZE != 1 || !QUEUE.equals("blocking") ||
+				!BACKEND.equals("threads") || NUM_PARSERS != 1 || METRICS) {
+			throw new RuntimeException("Tenants are read with the text loader " +
+					"in queue mode, without overdraft checks, the journal, " + 
+					"streaming, netting, bank.top, bank.snapshot, bank.batch, " + 
+					"bank.queue, bank.backend, bank.parsers or bank.metrics");
+		}
+		int numWorkers = Integer.parseInt(args[args.length - 1]);
+		ArrayList<Tenant> tenants = new ArrayList<Tenant>();
+		for (int i = 0; i < args.length - 1; i++) {
+			File path = new File(args[i]);
+			if (!path.isDirectory()) {
+				tenants.add( newTenant(path) );
+				continue;
+			}
+			File[] files = path.listFiles();
+			Arrays.sort(files);
+			for (File file : files) {
+				// Skip the summaries of an earlier run written alongside
+				if (file.isFile() && !file.getName().endsWith(".out")) {
+					tenants.add( newTenant(file) );
+				}
+			}
+		}
+		
+		TenantPool pool = new TenantPool(tenants, numWorkers, TENANT_QUANTUM);
+		try {
+			pool.run();
+		} catch (InterruptedException e) { e.printStackTrace(); }
+		pool.printStats();
+	}
+	
+	/**
+	 * Creates the Tenant for a transaction file, with NUM_ACCTS accounts of
+	 * INIT_BALANCE in an engine of its own.
+	 */
+	private static Tenant newTenant(File input) {
+		TransferEngine engine;
+		if (ENGINE.equals("lock")) {
+			engine = new LockingTransferEngine(NUM_ACCTS);
+		} else if (ENGINE.equals("atomic")) {
+			engine = new AtomicTransferEngine( createTable() );
+		} else if (ENGINE.equals("stm")) {
+			engine = new StmTransferEngine(NUM_ACCTS, Stm.policy(STM_POLICY));
+		} else {
+			throw new RuntimeException("Tenants support the lock, atomic and " +
+									   "stm engines");
+		}
+		File output = (OUT_DIR != null) ? 
+				new File(OUT_DIR, input.getName() + ".out") :
+				new File(input.getPath() + ".out");
+		return new Tenant(input, output, engine);
+	}
+	
 	public static void main(String[] args) {
-		if (args.length != 2) {
+		if (args.length < 2) {
 			throw new RuntimeException("Two arguments expected ...");
 		}
+		if (args.length > 2 || new File(args[0]).isDirectory()) {
+			runTenants(args);
+			return;
+		}
 		Bank bank = new Bank( Integer.parseInt(args[1]) ); 
 		bank.getTransactions( args[0] );
 		
@@ -170,6 +1009,30 @@ public class Bank {
 			bank.latch.await();
 		} catch (InterruptedException e) { e.printStackTrace(); }
 		
+		if (bank.executor != null) bank.executor.printStats();
+		if (STREAM) {
+			try { // Wait for the report of the tail of the stream
+				bank.streamReporter.join();
+			} catch (InterruptedException e) { e.printStackTrace(); }
+		}
+		if (bank.stripedEngine != null) {
+			try { // Stop splitting and merging before reading balances
+				bank.stripedEngine.shutdown();
+			} catch (InterruptedException e) { e.printStackTrace(); }
+			bank.stripedEngine.printStats();
+		}
+		if (bank.stmEngine != null) bank.stmEngine.printStats();
+		if (bank.netters != null) bank.reportNetting();
+		if (bank.conditionalEngine != null) bank.reportRejected();
+		if (bank.aggregates != null) bank.aggregates.printTop(TOP_N);
+		if (bank.journal != null) {
+			try { // Commit the tail and checkpoint
+				bank.journal.close();
+			} catch (IOException e) { e.printStackTrace(); }
+		}
+		if (bank.loadFailure != null) {
+			throw new RuntimeException("Cannot load " + args[0], bank.loadFailure);
+		}
 		bank.printAccounts();
 	}
 }
@@ -0,0 +1,338 @@
+package assign4;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics of a Bank in queue mode, published over JMX through
+ * BankMetricsMBean and optionally logged on stderr:
+ *
+ *   - transfers applied per worker, each counted by its own worker in a
+ *     WorkerCounter: a padded slot of one atomic array which only that
+ *     worker writes, with a release store rather than an atomic add
+ *   - the depth of the workers' queue, read from the queue when sampled
+ *   - transactions parsed, counted by a sink wrapping each loader thread's
+ *     own, with a release store into a counter only that thread writes
+ *   - monitor wait and hold times per account from LockMetrics, when the
+ *     lock engine is used
+ *
+ * A daemon thread samples the counters every intervalMs, turning them into
+ * the rates the MBean reports, and prints one line per sample if logging.
+ */
+public class BankMetrics implements BankMetricsMBean {
+	
+	static final int PAD = 8; // longs per worker slot, one cache line
+	static final String OBJECT_NAME = "assign4:type=Bank";
+	
+	private final int numWorkers;
+	private final long intervalMs;
+	private final boolean log;
+	private final AtomicLongArray workerCounts;
+	private final ArrayList<AtomicLong> parsed; // one per counting sink
+	private final LatencyHistogram waits, holds; // sampler thread only
+	private int nextWorker;
+	private Collection<?> queue;
+	private LockMetrics lockMetrics;
+	
+	// Latest sample, written by the sampler thread
+	private volatile double[] workerRates;
+	private volatile double transferRate, parseRate;
+	private volatile long lockWaitP50, lockWaitP99, lockHoldP50, lockHoldP99;
+	private volatile long lockSamples;
+	
+	/**
+	 * @param numWorkers number of workers to count transfers for
+	 * @param intervalMs time between samples
+	 * @param log whether to print each sample on stderr
+	 */
+	public BankMetrics(int numWorkers, long intervalMs, boolean log) {
+		this.numWorkers = numWorkers;
+		this.intervalMs = intervalMs;
+		this.log        = log;
+		workerCounts = new AtomicLongArray(numWorkers * PAD);
+		parsed       = new ArrayList<AtomicLong>();
+		waits        = new LatencyHistogram();
+		holds        = new LatencyHistogram();
+		workerRates  = new double[numWorkers];
+	}
+	
+	/**
+	 * Counts transfers for one worker. Only that worker may call add().
+	 */
+	public static class WorkerCounter {
+		private final AtomicLongArray counts;
+		private final int slot;
+		
+		private WorkerCounter(AtomicLongArray counts, int slot) {
+			this.counts = counts;
+			this.slot   = slot;
+		}
+		
+		public void add(long transfers) {
+			counts.lazySet(slot, counts.get(slot) + transfers);
+		}
+	}
+	
+	/**
+	 * @return the counter for the next of the numWorkers workers
+	 */
+	public synchronized WorkerCounter newWorker() {
+		if (nextWorker == numWorkers) {
+			throw new RuntimeException("All " + numWorkers + " workers " +
+									   "already have counters");
+		}
+		return new WorkerCounter(workerCounts, PAD * nextWorker++);
+	}
+	
+	/**
+	 * @param queue the workers' queue, whose size is its depth
+	 */
+	public void setQueue(Collection<?> queue) {
+		this.queue = queue;
+	}
+	
+	public void setLockMetrics(LockMetrics lockMetrics) {
+		this.lockMetrics = lockMetrics;
+	}
+	
+	/**
+	 * Wraps a loader thread's sink so every transaction it accepts is
+	 * counted as parsed. Each thread needs its own wrapper, even around a
+	 * shared sink. The wrapper takes multi-leg transactions if the sink does.
+	 */
+	public TransactionSink countParsed(TransactionSink sink) {
+		AtomicLong count = new AtomicLong();
+		synchronized(parsed) {
+			parsed.add(count);
+		}
+		if (sink instanceof MultiLegSink) {
+			return new CountingLegSink((MultiLegSink) sink, count);
+		}
+		return new CountingSink(sink, count);
+	}
+	
+	private static class CountingSink implements TransactionSink {
+		final TransactionSink sink;
+		final AtomicLong count;
+		
+		CountingSink(TransactionSink sink, AtomicLong count) {
+			this.sink  = sink;
+			this.count = count;
+		}
+		
+		@Override
+		public void accept(int from, int to, int amount)
+				throws InterruptedException {
+			sink.accept(from, to, amount);
+			count.lazySet(count.get() + 1);
+		}
+		
+		@Override
+		public void flush() throws InterruptedException {
+			sink.flush();
+		}
+	}
+	
+	private static class CountingLegSink extends CountingSink 
+			implements MultiLegSink {
+		
+		CountingLegSink(MultiLegSink sink, AtomicLong count) {
+			super(sink, count);
+		}
+		
+		@Override
+		public void acceptLegs(int from, int[] toAccounts, int[] amounts)
+				throws InterruptedException {
+			((MultiLegSink) sink).acceptLegs(from, toAccounts, amounts);
+			count.lazySet(count.get() + 1);
+		}
+	}
+	
+	/**
+	 * Registers the MBean with the platform MBean server and starts the
+	 * sampler thread.
+	 */
+	public void start() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			throw new RuntimeException("Cannot register " + OBJECT_NAME, e);
+		}
+		new Sampler().start();
+	}
+	
+	/**
+	 * Daemon thread which turns the counters into rates every intervalMs.
+	 */
+	private class Sampler extends Thread {
+		
+		public Sampler() {
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			long[] lastCounts = new long[numWorkers];
+			long lastParsed = 0;
+			long lastNanos = System.nanoTime();
+			try {
+				while (true) {
+					TimeUnit.MILLISECONDS.sleep(intervalMs);
+					long now = System.nanoTime();
+					double seconds = (now - lastNanos) / 1e9;
+					lastNanos = now;
+					
+					double[] rates = new double[numWorkers];
+					double total = 0;
+					for (int i = 0; i < numWorkers; i++) {
+						long count = workerCounts.get(PAD * i);
+						rates[i] = (count - lastCounts[i]) / seconds;
+						total += rates[i];
+						lastCounts[i] = count;
+					}
+					long parsedNow = getParsed();
+					parseRate    = (parsedNow - lastParsed) / seconds;
+					lastParsed   = parsedNow;
+					workerRates  = rates;
+					transferRate = total;
+					sampleLocks();
+					if (log) printSample();
+				}
+			} catch (InterruptedException e) {
+				return; // shut down
+			}
+		}
+	}
+	
+	/**
+	 * Merges the workers' lock histograms into the latest percentiles.
+	 */
+	private void sampleLocks() {
+		if (lockMetrics == null) return;
+		lockMetrics.mergeWaits(waits);
+		lockMetrics.mergeHolds(holds);
+		lockSamples = waits.getCount();
+		lockWaitP50 = waits.getPercentile(50);
+		lockWaitP99 = waits.getPercentile(99);
+		lockHoldP50 = holds.getPercentile(50);
+		lockHoldP99 = holds.getPercentile(99);
+	}
+	
+	/**
+	 * Prints the latest sample as one line on stderr.
+	 */
+	private void printSample() {
+		StringBuilder line = new StringBuilder(128);
+		line.append("metrics: ").append( Math.round(transferRate) )
+			.append(" transfers/s [");
+		double[] rates = workerRates;
+		for (int i = 0; i < rates.length; i++) {
+			if (i > 0) line.append(' ');
+			line.append( Math.round(rates[i]) );
+		}
+		line.append("], queue ").append( getQueueDepth() )
+			.append(", parsed ").append( Math.round(parseRate) ).append("/s");
+		if (lockMetrics != null) {
+			line.append(", lock wait p50/p99 ").append(lockWaitP50).append('/')
+				.append(lockWaitP99).append(" ns, hold p50/p99 ")
+				.append(lockHoldP50).append('/').append(lockHoldP99)
+				.append(" ns, most contended ").append( getMostContendedAccount() );
+		}
+		System.err.println(line);
+	}
+	
+	@Override
+	public long getTransfers() {
+		long total = 0;
+		for (int i = 0; i < numWorkers; i++) {
+			total += workerCounts.get(PAD * i);
+		}
+		return total;
+	}
+	
+	@Override
+	public double getTransfersPerSecond() {
+		return transferRate;
+	}
+	
+	@Override
+	public long[] getWorkerTransfers() {
+		long[] counts = new long[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			counts[i] = workerCounts.get(PAD * i);
+		}
+		return counts;
+	}
+	
+	@Override
+	public double[] getWorkerTransfersPerSecond() {
+		return workerRates.clone();
+	}
+	
+	@Override
+	public long getQueueDepth() {
+		return (queue != null) ? queue.size() : -1;
+	}
+	
+	@Override
+	public long getParsed() {
+		long total = 0;
+		synchronized(parsed) {
+			for (AtomicLong count : parsed) {
+				total += count.get();
+			}
+		}
+		return total;
+	}
+	
+	@Override
+	public double getParsedPerSecond() {
+		return parseRate;
+	}
+	
+	@Override
+	public long getLockSamples() {
+		return lockSamples;
+	}
+	
+	@Override
+	public long getLockWaitP50Nanos() {
+		return lockWaitP50;
+	}
+	
+	@Override
+	public long getLockWaitP99Nanos() {
+		return lockWaitP99;
+	}
+	
+	@Override
+	public long getLockHoldP50Nanos() {
+		return lockHoldP50;
+	}
+	
+	@Override
+	public long getLockHoldP99Nanos() {
+		return lockHoldP99;
+	}
+	
+	@Override
+	public int getMostContendedAccount() {
+		return (lockMetrics != null) ? lockMetrics.getMostContended() : -1;
+	}
+	
+	@Override
+	public long lockWaitNanos(int account) {
+		return (lockMetrics != null) ? lockMetrics.getWaitNanos(account) : 0;
+	}
+	
+	@Override
+	public long lockHoldNanos(int account) {
+		return (lockMetrics != null) ? lockMetrics.getHoldNanos(account) : 0;
+	}
+}
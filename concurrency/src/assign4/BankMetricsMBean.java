@@ -0,0 +1,66 @@
+package assign4;
+
+/**
+ * Management interface of BankMetrics, published over JMX as
+ * assign4:type=Bank. Rates are per second over the latest sample interval.
+ */
+public interface BankMetricsMBean {
+	
+	/**
+	 * @return the number of transfers applied by all workers so far
+	 */
+	public long getTransfers();
+	
+	public double getTransfersPerSecond();
+	
+	/**
+	 * @return the number of transfers applied by each worker so far
+	 */
+	public long[] getWorkerTransfers();
+	
+	public double[] getWorkerTransfersPerSecond();
+	
+	/**
+	 * @return the number of entries waiting in the workers' queue, batches
+	 * when transactions are batched, or -1 if the queue cannot tell
+	 */
+	public long getQueueDepth();
+	
+	/**
+	 * @return the number of transactions the loader has parsed so far
+	 */
+	public long getParsed();
+	
+	public double getParsedPerSecond();
+	
+	/**
+	 * @return the number of timed monitor acquisitions, 0 unless the lock
+	 * engine is used
+	 */
+	public long getLockSamples();
+	
+	public long getLockWaitP50Nanos();
+	
+	public long getLockWaitP99Nanos();
+	
+	public long getLockHoldP50Nanos();
+	
+	public long getLockHoldP99Nanos();
+	
+	/**
+	 * @return the account whose monitor workers waited longest for, or -1
+	 */
+	public int getMostContendedAccount();
+	
+	/**
+	 * @return the total sampled time workers waited for the account's
+	 * monitor, in ns
+	 */
+	public long lockWaitNanos(int account);
+	
+	/**
+	 * @return the total sampled time workers held the account's monitor,
+	 * in ns
+	 */
+	public long lockHoldNanos(int account);
+}
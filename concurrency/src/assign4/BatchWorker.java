@@ -0,0 +1,65 @@
+package assign4;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Worker which takes whole TransactionBatches from a queue and carries 
+ * them out with a TransferEngine, optionally netting each batch with a 
+ * PairNetter first. When it takes Bank.nullBatch it stops working and 
+ * decrements its latch.
+ */
+public class BatchWorker extends Thread {
+
+	private final BlockingQueue<TransactionBatch> queue;
+	private final TransferEngine engine;
+	private final CountDownLatch latch;
+	private final PairNetter netter;
+	private final BankMetrics.WorkerCounter counter;
+	
+	public BatchWorker(BlockingQueue<TransactionBatch> queue, 
+			TransferEngine engine, CountDownLatch latch) {
+		this(queue, engine, latch, null);
+	}
+	
+	public BatchWorker(BlockingQueue<TransactionBatch> queue, 
+			TransferEngine engine, CountDownLatch latch, PairNetter netter) {
+		this(queue, engine, latch, netter, null);
+	}
+	
+	/**
+	 * @param netter netting stage owned by this worker, or null to apply 
+	 * every transaction as it is
+	 * @param counter counts the transfers applied, or null
+	 */
+	public BatchWorker(BlockingQueue<TransactionBatch> queue, 
+			TransferEngine engine, CountDownLatch latch, PairNetter netter,
+			BankMetrics.WorkerCounter counter) {
+		this.queue   = queue;
+		this.engine  = engine;
+		this.latch   = latch;
+		this.netter  = netter;
+		this.counter = counter;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			TransactionBatch currBatch;
+			
+			while (true) {
+				currBatch = queue.take();
+				if (currBatch == Bank.nullBatch) break; // done
+				
+				if (netter != null) {
+					netter.applyTo(currBatch, engine);
+				} else {
+					currBatch.applyTo(engine);
+				}
+				if (counter != null) counter.add( currBatch.size() );
+			}
+			latch.countDown(); // signal done
+			
+		} catch (Exception e) { e.printStackTrace(); }
+	}
+}
@@ -0,0 +1,42 @@
+package assign4;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * TransactionSink which packs transactions into TransactionBatches and 
+ * enqueues each batch once it is full. A BatchingSink buffers state for a 
+ * single producer, so every producer thread needs its own instance; all of
+ * them may share one queue. 
+ */
+public class BatchingSink implements TransactionSink {
+
+	private final BlockingQueue<TransactionBatch> queue;
+	private final int batchSize;
+	private TransactionBatch current;
+	
+	public BatchingSink(BlockingQueue<TransactionBatch> queue, int batchSize) {
+		if (batchSize < 1) {
+			throw new RuntimeException("Invalid batch size " + batchSize);
+		}
+		this.queue     = queue;
+		this.batchSize = batchSize;
+		current = new TransactionBatch(batchSize);
+	}
+	
+	@Override
+	public void accept(int from, int to, int amount) 
+			throws InterruptedException {
+		if (current.add(from, to, amount)) {
+			queue.put(current);
+			current = new TransactionBatch(batchSize);
+		}
+	}
+	
+	@Override
+	public void flush() throws InterruptedException {
+		if (current.size() > 0) {
+			queue.put(current);
+			current = new TransactionBatch(batchSize);
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package assign4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32C;
+
+/**
+ * Compact fixed-width binary transaction format. A file is a HEADER_BYTES 
+ * header followed by one RECORD_BYTES record per transaction, all little 
+ * endian:
+ * 
+ *   header: magic "BANKTXN1" (8 bytes), version (int), record size (int),
+ *           record count (long), CRC32C of all record bytes (long)
+ *   record: from account (int), to account (int), amount (int)
+ * 
+ * Since records have a fixed width, a reader can map the file and split it
+ * between threads by record index, with no text to decode or lines to find.
+ */
+public class BinaryTransactionFile {
+
+	static final byte[] MAGIC      = { 'B', 'A', 'N', 'K', 'T', 'X', 'N', '1' };
+	static final int VERSION       = 1;
+	static final int HEADER_BYTES  = 32;
+	static final int RECORD_BYTES  = 12;
+	static final ByteOrder ORDER   = ByteOrder.LITTLE_ENDIAN;
+	
+	/**
+	 * Streams records to a new binary transaction file. The header is 
+	 * written by close(), once the record count and checksum are known.
+	 */
+	public static class Writer implements TransactionSink {
+		private static final int BUFFER_BYTES = RECORD_BYTES << 16;
+		
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final CRC32C crc;
+		private long count;
+		
+		public Writer(String fileName) throws IOException {
+			channel = FileChannel.open( Paths.get(fileName), 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+					StandardOpenOption.TRUNCATE_EXISTING );
+			buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ORDER);
+			crc    = new CRC32C();
+			count  = 0;
+			channel.position(HEADER_BYTES);
+		}
+		
+		/**
+		 * Appends one record.
+		 */
+		@Override
+		public void accept(int from, int to, int amount) {
+			if (buffer.remaining() < RECORD_BYTES) writeBuffer();
+			buffer.putInt(from).putInt(to).putInt(amount);
+			count++;
+		}
+		
+		@Override
+		public void flush() {
+			writeBuffer();
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		/**
+		 * Writes any buffered records and the header, then closes the file.
+		 */
+		public void close() throws IOException {
+			writeBuffer();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ORDER);
+			header.put(MAGIC).putInt(VERSION).putInt(RECORD_BYTES)
+				  .putLong(count).putLong( crc.getValue() );
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header, HEADER_BYTES - header.remaining());
+			}
+			channel.close();
+		}
+		
+		/**
+		 * Closes the file without writing the header, leaving it unreadable
+		 * as a binary transaction file.
+		 */
+		public void abort() throws IOException {
+			channel.close();
+		}
+		
+		private void writeBuffer() {
+			buffer.flip();
+			crc.update( buffer.duplicate() );
+			try {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			buffer.clear();
+		}
+	}
+	
+	/**
+	 * Reads a binary transaction file by memory-mapping it. The header is
+	 * validated when the Reader is created; the records can then be read as
+	 * a whole, after checking the checksum, or in record ranges by several 
+	 * threads.
+	 */
+	public static class Reader {
+		// Records are mapped in windows of at most this many bytes
+		static final long MAP_CHUNK = (MappedTransactionParser.MAP_CHUNK 
+									   / RECORD_BYTES) * RECORD_BYTES;
+		
+		private final FileChannel channel;
+		private final long count;
+		private final long checksum;
+		
+		/**
+		 * @param channel the open binary transaction file
+		 */
+		public Reader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ORDER);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new RuntimeException("Binary transaction file is " + 
+											   "missing its header");
+				}
+			}
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new RuntimeException("Not a binary transaction file");
+			}
+			int version    = header.getInt();
+			int recordSize = header.getInt();
+			if (version != VERSION || recordSize != RECORD_BYTES) {
+				throw new RuntimeException("Unsupported binary transaction " + 
+						"file version " + version + ", record size " + recordSize);
+			}
+			count    = header.getLong();
+			checksum = header.getLong();
+			if (channel.size() != HEADER_BYTES + count * RECORD_BYTES) {
+				throw new RuntimeException("Binary transaction file holds " + 
+						(channel.size() - HEADER_BYTES) + " record bytes, " + 
+						"but its header claims " + count + " records");
+			}
+		}
+		
+		/**
+		 * @return the number of records in the file
+		 */
+		public long getCount() {
+			return count;
+		}
+		
+		/**
+		 * Computes the CRC32C of every record in one pass over the mapped 
+		 * file, and throws if it does not match the header.
+		 */
+		public void verify() throws IOException {
+			CRC32C crc = new CRC32C();
+			long pos   = HEADER_BYTES;
+			long limit = HEADER_BYTES + count * RECORD_BYTES;
+			while (pos < limit) {
+				int len = (int) Math.min(MAP_CHUNK, limit - pos);
+				crc.update( channel.map(FileChannel.MapMode.READ_ONLY, pos, len) );
+				pos += len;
+			}
+			if (crc.getValue() != checksum) {
+				throw new RuntimeException("Binary transaction file " + 
+										   "checksum mismatch");
+			}
+		}
+		
+		/**
+		 * Passes records [first, end) to the sink, then flushes it. The 
+		 * checksum is not checked; see verify().
+		 * @return the number of records read
+		 */
+		public long read(TransactionSink sink, long first, long end) 
+				throws IOException, InterruptedException {
+			long pos   = HEADER_BYTES + first * RECORD_BYTES;
+			long limit = HEADER_BYTES + end * RECORD_BYTES;
+			
+			while (pos < limit) {
+				int len = (int) Math.min(MAP_CHUNK, limit - pos);
+				MappedByteBuffer buf = 
+						channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+				buf.order(ORDER);
+				for (int i = 0; i < len; i += RECORD_BYTES) {
+					sink.accept( buf.getInt(i), buf.getInt(i + 4), 
+								 buf.getInt(i + 8) );
+				}
+				pos += len;
+			}
+			sink.flush();
+			return end - first;
+		}
+		
+		/**
+		 * Verifies the checksum, then reads every record, so a corrupted file
+		 * is rejected before any of it reaches a sink. A single sink reads 
+		 * the file in order; otherwise the records are split into one 
+		 * contiguous range per sink, read concurrently by one thread each.
+		 * @param sinks one sink per reader thread
+		 * @return the number of records read
+		 */
+		public long readAll(TransactionSink[] sinks) throws Exception {
+			if (sinks.length < 1) {
+				throw new RuntimeException("Invalid number of readers requested");
+			}
+			verify();
+			if (sinks.length == 1) {
+				return read(sinks[0], 0, count);
+			}
+			
+			CountDownLatch latch = new CountDownLatch(sinks.length);
+			RangeWorker[] workers = new RangeWorker[sinks.length];
+			for (int i = 0; i < sinks.length; i++) {
+				workers[i] = new RangeWorker(sinks[i], count * i / sinks.length,
+						count * (i + 1) / sinks.length, latch);
+				workers[i].start();
+			}
+			latch.await();
+			for (RangeWorker worker : workers) {
+				if (worker.failure != null) throw worker.failure;
+			}
+			return count;
+		}
+		
+		/**
+		 * Reader thread responsible for one range of records. Records the 
+		 * failure, if any, and decrements the latch when done.
+		 */
+		private class RangeWorker extends Thread {
+			private final TransactionSink sink;
+			private final long first;
+			private final long end;
+			private final CountDownLatch latch;
+			private volatile Exception failure;
+			
+			public RangeWorker(TransactionSink sink, long first, long end,
+					CountDownLatch latch) {
+				this.sink  = sink;
+				this.first = first;
+				this.end   = end;
+				this.latch = latch;
+			}
+			
+			@Override
+			public void run() {
+				try {
+					read(sink, first, end);
+				} catch (Exception e) {
+					failure = e;
+				}
+				latch.countDown(); // signal done
+			}
+		}
+	}
+}
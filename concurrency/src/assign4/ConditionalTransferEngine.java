@@ -0,0 +1,14 @@
+package assign4;
+
+/**
+ * TransferEngine which refuses any transfer that would overdraw the from 
+ * account. A refused transfer changes neither account, not even their 
+ * numbers of transactions, and is counted instead.
+ */
+public interface ConditionalTransferEngine extends TransferEngine {
+
+	/**
+	 * @return the number of transfers refused for insufficient funds so far
+	 */
+	public long getRejected();
+}
@@ -0,0 +1,87 @@
+package assign4;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Off-heap AccountTable stored in a single direct ByteBuffer. Each row is
+ * three native-order longs: id, balance, and transaction count. Since the
+ * rows live outside of the Java heap they add nothing to GC work no matter
+ * how many accounts there are. Atomic updates go through a VarHandle view 
+ * of the buffer.
+ */
+public class DirectAccountTable implements AccountTable {
+
+	private static final int ID        = 0;  // byte offsets within a row
+	private static final int BALANCE   = 8;
+	private static final int TRANS     = 16;
+	private static final int ROW_BYTES = 24;
+	
+	static final int MAX_ACCOUNTS = Integer.MAX_VALUE / ROW_BYTES;
+	
+	private static final VarHandle LONGS = 
+			MethodHandles.byteBufferViewVarHandle(long[].class, 
+												  ByteOrder.nativeOrder());
+	
+	private final int size;
+	private final ByteBuffer rows;
+	
+	public DirectAccountTable(int size, long initBalance) {
+		if (size < 0 || size > MAX_ACCOUNTS) {
+			throw new RuntimeException("Direct table supports at most " + 
+									   MAX_ACCOUNTS + " accounts");
+		}
+		this.size = size;
+		rows = ByteBuffer.allocateDirect(size * ROW_BYTES)
+						 .order(ByteOrder.nativeOrder());
+		
+		for (int i = 0; i < size; i++) {
+			rows.putLong(i * ROW_BYTES + ID, i);
+			rows.putLong(i * ROW_BYTES + BALANCE, initBalance);
+			rows.putLong(i * ROW_BYTES + TRANS, 0);
+		}
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @param row the row index
+	 * @return the account ID stored in the given row
+	 */
+	public long getId(int row) {
+		return (long) LONGS.getVolatile(rows, row * ROW_BYTES + ID);
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return (long) LONGS.getVolatile(rows, id * ROW_BYTES + BALANCE);
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return (long) LONGS.getVolatile(rows, id * ROW_BYTES + TRANS);
+	}
+	
+	@Override
+	public void add(int id, long delta) {
+		LONGS.getAndAdd(rows, id * ROW_BYTES + BALANCE, delta);
+		LONGS.getAndAdd(rows, id * ROW_BYTES + TRANS, 1L);
+	}
+	
+	@Override
+	public void add(int id, long delta, long count) {
+		LONGS.getAndAdd(rows, id * ROW_BYTES + BALANCE, delta);
+		LONGS.getAndAdd(rows, id * ROW_BYTES + TRANS, count);
+	}
+	
+	@Override
+	public void set(int id, long balance, long transactions) {
+		LONGS.setVolatile(rows, id * ROW_BYTES + BALANCE, balance);
+		LONGS.setVolatile(rows, id * ROW_BYTES + TRANS, transactions);
+	}
+}
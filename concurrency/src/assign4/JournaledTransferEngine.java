@@ -0,0 +1,62 @@
+package assign4;
+
+/**
+ * TransferEngine decorator which records every transfer applied by the 
+ * wrapped engine in a TransferJournal.
+ */
+public class JournaledTransferEngine implements TransferEngine {
+
+	private final TransferEngine engine;
+	private final TransferJournal journal;
+	
+	public JournaledTransferEngine(TransferEngine engine, 
+			TransferJournal journal) {
+		this.engine  = engine;
+		this.journal = journal;
+	}
+	
+	@Override
+	public void transfer(int from, int to, int amount) {
+		engine.transfer(from, to, amount);
+		journal.append(from, to, amount);
+	}
+	
+	/**
+	 * Journals every leg in one group commit, so after a crash either all
+	 * legs are recovered or none.
+	 */
+	@Override
+	public void transferLegs(int from, int[] toAccounts, int[] amounts) {
+		engine.transferLegs(from, toAccounts, amounts);
+		journal.appendLegs(from, toAccounts, amounts);
+	}
+	
+	/**
+	 * Not supported: the journal replays one transaction per record, so the
+	 * individual transfers behind a net movement could not be recovered.
+	 */
+	@Override
+	public void transferNet(int from, int to, int amount, int count) {
+		throw new RuntimeException("Netted transfers cannot be journaled");
+	}
+	
+	@Override
+	public void restore(int id, long balance, long transactions) {
+		engine.restore(id, balance, transactions);
+	}
+	
+	@Override
+	public int numAccounts() {
+		return engine.numAccounts();
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return engine.getBalance(id);
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return engine.getTransactions(id);
+	}
+}
@@ -0,0 +1,114 @@
+package assign4;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets, in the 
+ * style of HdrHistogram: every power of two range is split into SUB_BUCKETS
+ * equal buckets, so recorded values keep about 3% precision across the 
+ * whole range of a long. Recording is a few shifts and an array increment.
+ * A LatencyHistogram is not thread-safe; give each thread its own and 
+ * combine them with add().
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS    = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+	
+	private final long[] counts;
+	private long count;
+	private long sum;
+	private long max;
+	
+	public LatencyHistogram() {
+		counts = new long[NUM_BUCKETS];
+		reset();
+	}
+	
+	/**
+	 * Records one latency. Negative values are recorded as 0.
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts[ bucketOf(nanos) ]++;
+		count++;
+		sum += nanos;
+		if (nanos > max) max = nanos;
+	}
+	
+	/**
+	 * Adds every value recorded in other to this histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum   += other.sum;
+		max    = Math.max(max, other.max);
+	}
+	
+	/**
+	 * Clears all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum   = 0;
+		max   = 0;
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	public long getMax() {
+		return max;
+	}
+	
+	public double getMean() {
+		return (count == 0) ? 0 : (double) sum / count;
+	}
+	
+	/**
+	 * Returns the value at the given percentile, accurate to the width of
+	 * the bucket it falls in.
+	 * @param percentile between 0 and 100
+	 * @return the latency in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0) return 0;
+		long rank = (long) Math.ceil(percentile / 100.0 * count);
+		rank = Math.max(1, Math.min(rank, count));
+		
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min( valueOf(i), max );
+		}
+		return max;
+	}
+	
+	/**
+	 * Values below SUB_BUCKETS get their own bucket; larger values are 
+	 * bucketed by their top SUB_BITS + 1 bits.
+	 */
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + 
+				(int) ((value >>> shift) - SUB_BUCKETS);
+	}
+	
+	/**
+	 * @return the largest value which falls in the given bucket
+	 */
+	private static long valueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int shift = (bucket >> SUB_BITS) - 1;
+		long base = (long) ((bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+		return base + (1L << shift) - 1;
+	}
+}
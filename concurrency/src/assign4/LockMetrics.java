@@ -0,0 +1,149 @@
+package assign4;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sampled lock-contention statistics for the Account monitors of a
+ * LockingTransferEngine. One in sampleEvery transfers, picked at random,
+ * is timed: how long the worker waited to enter each of its two monitors,
+ * and how long it then held them. Untimed transfers only pay for drawing
+ * the random number.
+ *
+ * Every account has striped totals of the sampled wait and hold times and
+ * the number of samples, three adjacent slots of one atomic array. Wait and
+ * hold times are also recorded in LatencyHistograms, one pair per worker
+ * thread. A worker records into its pair while holding the pair's monitor,
+ * which readers take to merge it, so merged percentiles come from a 
+ * consistent copy; the monitor is only contended while a reader merges.
+ */
+public class LockMetrics {
+	
+	private static final int WAIT = 0, HOLD = 1, SAMPLES = 2, SLOTS = 3;
+	
+	private final int numAccounts;
+	private final int sampleMask;
+	private final AtomicLongArray totals;
+	private final ArrayList<LatencyHistogram[]> histograms;
+	private final ThreadLocal<LatencyHistogram[]> current;
+	
+	/**
+	 * @param numAccounts number of accounts whose monitors are timed
+	 * @param sampleEvery time one in this many transfers, on average, 
+	 * rounded up to a power of two
+	 */
+	public LockMetrics(int numAccounts, int sampleEvery) {
+		this.numAccounts = numAccounts;
+		int every = 1;
+		while (every < sampleEvery) every <<= 1;
+		this.sampleMask  = every - 1;
+		totals     = new AtomicLongArray(numAccounts * SLOTS);
+		histograms = new ArrayList<LatencyHistogram[]>();
+		current    = new ThreadLocal<LatencyHistogram[]>() {
+			@Override
+			protected LatencyHistogram[] initialValue() {
+				LatencyHistogram[] pair = new LatencyHistogram[] {
+						new LatencyHistogram(), new LatencyHistogram() };
+				synchronized(histograms) {
+					histograms.add(pair);
+				}
+				return pair;
+			}
+		};
+	}
+	
+	/**
+	 * @return whether the calling worker should time its next transfer
+	 */
+	public boolean sample() {
+		return (ThreadLocalRandom.current().nextInt() & sampleMask) == 0;
+	}
+	
+	/**
+	 * Records one timed acquisition of an account's monitor.
+	 * @param waitNanos time from trying to enter the monitor to entering it
+	 * @param holdNanos time the monitor was then held
+	 */
+	public void record(int id, long waitNanos, long holdNanos) {
+		totals.getAndAdd(id * SLOTS + WAIT, waitNanos);
+		totals.getAndAdd(id * SLOTS + HOLD, holdNanos);
+		totals.getAndIncrement(id * SLOTS + SAMPLES);
+		LatencyHistogram[] pair = current.get();
+		synchronized(pair) {
+			pair[WAIT].record(waitNanos);
+			pair[HOLD].record(holdNanos);
+		}
+	}
+	
+	public int numAccounts() {
+		return numAccounts;
+	}
+	
+	public int getSampleEvery() {
+		return sampleMask + 1;
+	}
+	
+	/**
+	 * @return the total sampled wait time for the account's monitor, in ns
+	 */
+	public long getWaitNanos(int id) {
+		return totals.get(id * SLOTS + WAIT);
+	}
+	
+	/**
+	 * @return the total sampled hold time of the account's monitor, in ns
+	 */
+	public long getHoldNanos(int id) {
+		return totals.get(id * SLOTS + HOLD);
+	}
+	
+	/**
+	 * @return the number of timed acquisitions of the account's monitor
+	 */
+	public long getSamples(int id) {
+		return totals.get(id * SLOTS + SAMPLES);
+	}
+	
+	/**
+	 * @return the account whose monitor workers waited longest for in
+	 * total, or -1 if none was sampled yet
+	 */
+	public int getMostContended() {
+		int most = -1;
+		long longest = 0;
+		for (int i = 0; i < numAccounts; i++) {
+			long wait = getWaitNanos(i);
+			if (wait > longest) {
+				longest = wait;
+				most    = i;
+			}
+		}
+		return most;
+	}
+	
+	/**
+	 * Merges every worker's wait times into the given histogram.
+	 */
+	public void mergeWaits(LatencyHistogram into) {
+		merge(WAIT, into);
+	}
+	
+	/**
+	 * Merges every worker's hold times into the given histogram.
+	 */
+	public void mergeHolds(LatencyHistogram into) {
+		merge(HOLD, into);
+	}
+	
+	private void merge(int which, LatencyHistogram into) {
+		into.reset();
+		synchronized(histograms) {
+			for (LatencyHistogram[] pair : histograms) {
+				synchronized(pair) {
+					into.add(pair[which]);
+				}
+			}
+		}
+	}
+}
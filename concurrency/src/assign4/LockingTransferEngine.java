@@ -0,0 +1,223 @@
+package assign4;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransferEngine which keeps one Account object per account ID and locks 
+ * both Accounts involved in a transfer, lowest ID first, so that workers 
+ * can never deadlock. Multi-leg transactions lock every Account they touch
+ * in the same ascending order.
+ * 
+ * Consistent snapshots can be taken while transfers are in flight. Each 
+ * snapshot starts a new epoch, and a transfer reads the epoch once it holds
+ * both locks, so every transfer falls entirely before or after the cut. The
+ * first transfer to touch an Account in a new epoch saves the Account's 
+ * values as of the cut; the reader then visits each Account under its lock
+ * and takes either the saved or the current values. Writers pay one 
+ * volatile read and a comparison per Account, and are never stopped.
+ * 
+ * When overdrafts are not allowed, the from Account's balance is checked 
+ * once both locks are held and a transfer it does not cover is refused; 
+ * this is the pessimistic counterpart of OptimisticTransferEngine.
+ */
+public class LockingTransferEngine implements ConditionalTransferEngine {
+
+	private ArrayList<Account> accounts;
+	private volatile long epoch;
+	private final Object snapshotLock = new Object();
+	private final boolean allowOverdraft;
+	private final LongAdder rejected = new LongAdder();
+	private LockMetrics lockMetrics;
+	
+	public LockingTransferEngine(int numAccounts) {
+		this(numAccounts, true);
+	}
+	
+	/**
+	 * @param numAccounts number of accounts, each with INIT_BALANCE
+	 * @param allowOverdraft whether transfers may drive balances negative
+	 */
+	public LockingTransferEngine(int numAccounts, boolean allowOverdraft) {
+		accounts = new ArrayList<Account>(numAccounts);
+		for (int i = 0; i < numAccounts; i++) {
+			accounts.add(i, new Account(i) );
+		}
+		this.allowOverdraft = allowOverdraft;
+	}
+	
+	@Override
+	public void transfer(int from, int to, int amount) {
+		transferNet(from, to, amount, 1);
+	}
+	
+	@Override
+	public void transferNet(int from, int to, int amount, int count) {
+		Account firstLock, secondLock;
+		
+		// Determine order of locks, lowest ID first for consistency
+		if (from < to) {
+			firstLock  = accounts.get(from);
+			secondLock = accounts.get(to);
+		} else if (from > to) {
+			firstLock  = accounts.get(to);
+			secondLock = accounts.get(from);
+		} else { // to and from are the same
+			firstLock  = accounts.get(from);
+			secondLock = accounts.get(from);
+		}
+		
+		if (lockMetrics != null && lockMetrics.sample()) {
+			timedTransfer(firstLock, secondLock, from, to, amount, count);
+			return;
+		}
+		
+		// Carry out the actual transaction, thread safe
+		synchronized(firstLock) {
+			synchronized(secondLock) {
+				apply(firstLock, secondLock, from, to, amount, count);
+			}
+		}
+	}
+	
+	/**
+	 * Carries out a transfer like transferNet, timing how long the worker
+	 * waits to enter each monitor and how long it holds them.
+	 */
+	private void timedTransfer(Account firstLock, Account secondLock, 
+			int from, int to, int amount, int count) {
+		long start = System.nanoTime();
+		long firstEntered, secondEntered, applied;
+		synchronized(firstLock) {
+			firstEntered = System.nanoTime();
+			synchronized(secondLock) {
+				secondEntered = System.nanoTime();
+				apply(firstLock, secondLock, from, to, amount, count);
+				applied = System.nanoTime();
+			}
+		}
+		lockMetrics.record(firstLock.getId(), firstEntered - start, 
+						   applied - firstEntered);
+		if (secondLock != firstLock) {
+			lockMetrics.record(secondLock.getId(), secondEntered - firstEntered,
+							   applied - secondEntered);
+		}
+	}
+	
+	/**
+	 * Applies a transfer, or count netted ones, while holding both locks.
+	 */
+	private void apply(Account firstLock, Account secondLock, int from, 
+			int to, int amount, int count) {
+		if (!allowOverdraft && accounts.get(from).getBalance() < amount) {
+			rejected.add(count);
+			return;
+		}
+		long currEpoch = epoch;
+		firstLock.beginEpoch(currEpoch);
+		secondLock.beginEpoch(currEpoch);
+		accounts.get(from).withdraw(amount, count);
+		accounts.get(to).deposit(amount, count);
+	}
+	
+	/**
+	 * Times a sample of transfers' monitor waits and holds from now on.
+	 * Multi-leg transactions are not timed. Call before workers start.
+	 * @param lockMetrics where samples are recorded, or null to stop timing
+	 */
+	public void setLockMetrics(LockMetrics lockMetrics) {
+		this.lockMetrics = lockMetrics;
+	}
+	
+	@Override
+	public void transferLegs(int from, int[] toAccounts, int[] amounts) {
+		int[] ids = new int[toAccounts.length + 1];
+		int numIds = MultiLegTransaction.lockOrder(from, toAccounts, ids);
+		lockAndApply(ids, 0, numIds, from, toAccounts, amounts);
+	}
+	
+	/**
+	 * Locks the Accounts ids[index..numIds) in order, one monitor per level
+	 * of recursion, then applies every leg while holding all of them. The
+	 * recursion is bounded by MultiLegTransaction.MAX_LEGS.
+	 */
+	private void lockAndApply(int[] ids, int index, int numIds, int from, 
+			int[] toAccounts, int[] amounts) {
+		if (index < numIds) {
+			synchronized(accounts.get(ids[index])) {
+				lockAndApply(ids, index + 1, numIds, from, toAccounts, amounts);
+			}
+			return;
+		}
+		
+		int total = MultiLegTransaction.total(amounts);
+		if (!allowOverdraft && accounts.get(from).getBalance() < total) {
+			rejected.add(amounts.length);
+			return;
+		}
+		long currEpoch = epoch;
+		for (int i = 0; i < numIds; i++) {
+			accounts.get(ids[i]).beginEpoch(currEpoch);
+		}
+		accounts.get(from).withdraw(total, amounts.length);
+		for (int i = 0; i < amounts.length; i++) {
+			accounts.get(toAccounts[i]).deposit(amounts[i]);
+		}
+	}
+	
+	/**
+	 * Takes a globally consistent snapshot of every account without 
+	 * stopping the workers. Snapshots are taken one at a time.
+	 * @return the balances and transaction counts as of the cut
+	 */
+	public BalanceSnapshot snapshot() {
+		synchronized(snapshotLock) {
+			long snapEpoch = ++epoch; // the cut
+			long[] balances     = new long[accounts.size()];
+			long[] transactions = new long[accounts.size()];
+			
+			for (int i = 0; i < accounts.size(); i++) {
+				Account account = accounts.get(i);
+				synchronized(account) {
+					balances[i]     = account.getBalanceAt(snapEpoch);
+					transactions[i] = account.getTransactionsAt(snapEpoch);
+				}
+			}
+			return new BalanceSnapshot(snapEpoch, balances, transactions);
+		}
+	}
+	
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+	
+	@Override
+	public void restore(int id, long balance, long transactions) {
+		Account account = accounts.get(id);
+		synchronized(account) {
+			account.restore((int) balance, (int) transactions);
+		}
+	}
+	
+	@Override
+	public int numAccounts() {
+		return accounts.size();
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		Account account = accounts.get(id);
+		synchronized(account) {
+			return account.getBalance();
+		}
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		Account account = accounts.get(id);
+		synchronized(account) {
+			return account.getTransactions();
+		}
+	}
+}
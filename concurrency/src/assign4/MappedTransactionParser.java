@@ -0,0 +1,146 @@
+package assign4;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Parses "from to amount" transaction lines straight out of a memory-mapped
+ * file. ASCII integers are decoded byte by byte and handed to a 
+ * TransactionSink, so no Strings or other intermediate objects are created.
+ * Lines follow the same rules as the text loader: exactly three integers
+ * separated by single spaces or tabs, optionally ending in "\r\n".
+ */
+public class MappedTransactionParser {
+
+	// Files are mapped in windows of at most this many bytes
+	static final long MAP_CHUNK = 1L << 30;
+	
+	private final TransactionSink sink;
+	private long count;
+	private long windowStart;
+	
+	public MappedTransactionParser(TransactionSink sink) {
+		this.sink = sink;
+		count     = 0;
+	}
+	
+	/**
+	 * Parses every line in the byte range [start, end) of the channel. The 
+	 * range must begin at the start of a line and end just after a newline
+	 * or at the end of the file. The sink is flushed once the range is done.
+	 * @param channel the open transaction file
+	 * @param start offset of the first byte to parse
+	 * @param end offset one past the last byte to parse
+	 * @return the number of transactions parsed by this parser so far
+	 */
+	public long parse(FileChannel channel, long start, long end) 
+			throws IOException, InterruptedException {
+		long pos = start;
+		
+		while (pos < end) {
+			long len = Math.min(MAP_CHUNK, end - pos);
+			MappedByteBuffer buf = 
+					channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+			windowStart = pos;
+			
+			// Parse whole lines, remapping from the first incomplete one
+			int consumed = parseLines(buf, (int) len, pos + len == end);
+			if (consumed == 0) {
+				throw new RuntimeException("Line at byte " + pos + 
+										   " exceeds the map window");
+			}
+			pos += consumed;
+		}
+		sink.flush();
+		return count;
+	}
+	
+	/**
+	 * @return the number of transactions parsed by this parser so far
+	 */
+	public long getCount() {
+		return count;
+	}
+	
+	/**
+	 * Parses the complete lines in the first limit bytes of buf, passing 
+	 * them to the sink.
+	 * @param last whether buf ends the range, in which case a final line
+	 * without a newline is parsed too
+	 * @return the number of bytes consumed, which excludes a trailing 
+	 * partial line unless last is set
+	 */
+	private int parseLines(MappedByteBuffer buf, int limit, boolean last) 
+			throws InterruptedException {
+		int from = 0, to = 0, amount = 0;
+		int field = 0, lineStart = 0, pos = 0;
+		long value = 0;
+		boolean negative = false, digits = false;
+		
+		while (true) {
+			byte b;
+			if (pos < limit) {
+				b = buf.get(pos);
+			} else if (last && pos > lineStart) {
+				b = '\n'; // unterminated final line
+			} else {
+				break;
+			}
+			pos++;
+			
+			if (b >= '0' && b <= '9') {
+				value  = value * 10 + (b - '0');
+				digits = true;
+				if (value > Integer.MAX_VALUE + 1L) badLine(lineStart);
+				
+			} else if (b == '-' && !digits && !negative) {
+				negative = true;
+				
+			} else if (b == ' ' || b == '\t' || b == '\n') {
+				// Close the current field
+				if (!digits) badLine(lineStart);
+				if (negative) value = -value;
+				if (value > Integer.MAX_VALUE) badLine(lineStart);
+				
+				if (field == 0) {
+					from = (int) value;
+				} else if (field == 1) {
+					to = (int) value;
+				} else if (field == 2 && b == '\n') {
+					amount = (int) value;
+				} else {
+					badLine(lineStart);
+				}
+				field++;
+				value    = 0;
+				negative = false;
+				digits   = false;
+				
+				if (b == '\n') { // close the line
+					if (field != 3) badLine(lineStart);
+					sink.accept(from, to, amount);
+					count++;
+					field     = 0;
+					lineStart = pos;
+				}
+			} else if (b == '\r') {
+				// Only allowed as part of a "\r\n" line ending
+				if (pos < limit && buf.get(pos) != '\n') badLine(lineStart);
+				
+			} else {
+				badLine(lineStart);
+			}
+		}
+		return Math.min(lineStart, limit);
+	}
+	
+	/**
+	 * Signals that the line beginning at the given window offset is 
+	 * malformed.
+	 */
+	private void badLine(int lineStart) {
+		throw new RuntimeException("3 values expected for all input lines " + 
+				"(bad line at byte " + (windowStart + lineStart) + ")");
+	}
+}
@@ -0,0 +1,18 @@
+package assign4;
+
+/**
+ * TransactionSink which also accepts multi-leg transactions.
+ */
+public interface MultiLegSink extends TransactionSink {
+
+	/**
+	 * Accepts one multi-leg transaction, blocking if the sink is full. The
+	 * sink takes ownership of the arrays.
+	 * @param from ID of the account to withdraw every leg from
+	 * @param toAccounts ID of the account to deposit into, per leg
+	 * @param amounts the amount to move, per leg
+	 * @throws InterruptedException if interrupted while waiting for space
+	 */
+	public void acceptLegs(int from, int[] toAccounts, int[] amounts) 
+			throws InterruptedException;
+}
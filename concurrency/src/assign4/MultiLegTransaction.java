@@ -0,0 +1,62 @@
+package assign4;
+
+import java.util.Arrays;
+
+/**
+ * Transaction which debits one account and credits any number of others,
+ * all or nothing, e.g. a batch payout. Leg i moves amounts[i] from the from
+ * account to toAccounts[i], and counts as one transaction for both, so a
+ * multi-leg transaction changes balances and transaction counts exactly as
+ * its legs would one after another. The whole transaction travels through
+ * the queue as one object.
+ * 
+ * A transaction has at most MAX_LEGS legs: LockingTransferEngine holds one
+ * nested monitor per account touched, and each costs it a stack frame.
+ */
+public class MultiLegTransaction extends Transaction {
+
+	static final int MAX_LEGS = 1024;
+	
+	final int[] toAccounts;
+	final int[] amounts;
+	
+	public MultiLegTransaction(int from, int[] toAccounts, int[] amounts) {
+		super(from, -1, 0);
+		if (toAccounts.length != amounts.length || amounts.length == 0) {
+			throw new RuntimeException("One amount expected per leg");
+		}
+		if (amounts.length > MAX_LEGS) {
+			throw new RuntimeException("Multi-leg transaction from " + from + 
+					" has " + amounts.length + " legs, at most " + MAX_LEGS + 
+					" are supported");
+		}
+		this.toAccounts = toAccounts;
+		this.amounts    = amounts;
+	}
+	
+	/**
+	 * @return the sum of the amounts of every leg
+	 */
+	static int total(int[] amounts) {
+		long total = 0;
+		for (int amount : amounts) total += amount;
+		return Math.toIntExact(total);
+	}
+	
+	/**
+	 * Lists every account touched by a multi-leg transaction once, in 
+	 * ascending order, which is the global order its locks are taken in.
+	 * @return the number of distinct accounts, written to the front of ids
+	 * @param ids array of at least toAccounts.length + 1 entries
+	 */
+	static int lockOrder(int from, int[] toAccounts, int[] ids) {
+		ids[0] = from;
+		System.arraycopy(toAccounts, 0, ids, 1, toAccounts.length);
+		Arrays.sort(ids, 0, toAccounts.length + 1);
+		int n = 1;
+		for (int i = 1; i <= toAccounts.length; i++) {
+			if (ids[i] != ids[n - 1]) ids[n++] = ids[i];
+		}
+		return n;
+	}
+}
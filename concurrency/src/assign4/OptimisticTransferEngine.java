@@ -0,0 +1,136 @@
+package assign4;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free ConditionalTransferEngine. Each account's balance and number 
+ * of transactions are packed into one long, balance in the high half, so a
+ * whole account is read and replaced by a single atomic operation. As the
+ * transaction count grows with every change, it doubles as the account's 
+ * version: a withdrawal reads the packed state, validates that the balance
+ * covers the amount, and commits with a compareAndSet which fails, and is
+ * retried, if any other transfer touched the account in between. Once the
+ * withdrawal has committed the deposit cannot fail, so it is a single 
+ * fetch-and-add of the packed amount and count.
+ * 
+ * No lock is ever held, so a worker is never stalled by a preempted one,
+ * but as with AtomicTransferEngine a reader racing with a transfer may see
+ * the withdrawal before the deposit.
+ */
+public class OptimisticTransferEngine implements ConditionalTransferEngine {
+
+	private static final int PAD_LIMIT = 4096; // max accounts to pad
+	private static final int PAD_WIDTH = 8;    // longs per 64 byte line
+	
+	private final int size;
+	private final int stride;
+	private final AtomicLongArray states;
+	private final LongAdder rejected;
+	private final LongAdder retries;
+	
+	public OptimisticTransferEngine(int numAccounts) {
+		size   = numAccounts;
+		stride = (size <= PAD_LIMIT) ? PAD_WIDTH : 1;
+		states = new AtomicLongArray(size * stride);
+		for (int i = 0; i < size; i++) {
+			states.set(i * stride, pack(Bank.INIT_BALANCE, 0));
+		}
+		rejected = new LongAdder();
+		retries  = new LongAdder();
+	}
+	
+	@Override
+	public void transfer(int from, int to, int amount) {
+		transferNet(from, to, amount, 1);
+	}
+	
+	@Override
+	public void transferNet(int from, int to, int amount, int count) {
+		int slot = from * stride;
+		while (true) {
+			long state = states.get(slot); // versioned read
+			int balance = balanceOf(state);
+			if (balance < amount) {
+				rejected.add(count);
+				return;
+			}
+			long next = pack(balance - amount, transactionsOf(state) + count);
+			if (states.compareAndSet(slot, state, next)) break; // commit
+			retries.increment();
+		}
+		states.getAndAdd(to * stride, pack(amount, count));
+	}
+	
+	/**
+	 * Withdraws the total of every leg with one validated commit, so the 
+	 * transaction is refused as a whole, then deposits each leg.
+	 */
+	@Override
+	public void transferLegs(int from, int[] toAccounts, int[] amounts) {
+		int total = MultiLegTransaction.total(amounts);
+		int slot  = from * stride;
+		while (true) {
+			long state = states.get(slot);
+			int balance = balanceOf(state);
+			if (balance < total) {
+				rejected.add(amounts.length);
+				return;
+			}
+			long next = pack(balance - total, transactionsOf(state) + amounts.length);
+			if (states.compareAndSet(slot, state, next)) break;
+			retries.increment();
+		}
+		for (int i = 0; i < amounts.length; i++) {
+			states.getAndAdd(toAccounts[i] * stride, pack(amounts[i], 1));
+		}
+	}
+	
+	/**
+	 * Packs a balance and number of transactions into one long. Adding two
+	 * packed values adds both halves, as long as the count stays positive.
+	 */
+	private static long pack(int balance, int transactions) {
+		return ((long) balance << 32) + (transactions & 0xFFFFFFFFL);
+	}
+	
+	private static int balanceOf(long state) {
+		return (int) (state >> 32);
+	}
+	
+	private static int transactionsOf(long state) {
+		return (int) state;
+	}
+	
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+	
+	/**
+	 * @return the number of withdrawals retried after a failed commit
+	 */
+	public long getRetries() {
+		return retries.sum();
+	}
+	
+	@Override
+	public void restore(int id, long balance, long transactions) {
+		states.set(id * stride, pack((int) balance, (int) transactions));
+	}
+	
+	@Override
+	public int numAccounts() {
+		return size;
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return balanceOf( states.get(id * stride) );
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return transactionsOf( states.get(id * stride) );
+	}
+}
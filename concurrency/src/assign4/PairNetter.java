@@ -0,0 +1,118 @@
+package assign4;
+
+/**
+ * Netting stage which collapses a window of transactions into one net
+ * movement per account pair before any locks are taken. Since transfers
+ * commute as far as final balances are concerned, every transfer between
+ * the same two accounts, in either direction, adds into one cell of a 
+ * primitive numAccounts x numAccounts pair matrix, indexed lowest ID first.
+ * Each touched pair is then applied with a single transferNet carrying the
+ * number of transfers it stands for, so per-account transaction counts are
+ * the same as without netting. A net amount beyond int range is applied as
+ * several transferNets, the last of which carries the count.
+ * 
+ * A PairNetter is owned by one worker and is not thread-safe.
+ */
+public class PairNetter {
+
+	// Largest pair matrix allowed, bounding the accounts which can be netted
+	static final int MAX_CELLS = 1 << 20;
+	
+	private final int numAccounts;
+	private final long[] netAmounts; // moved from the lower to the higher ID
+	private final int[] counts;
+	private final int[] touched;     // cells in use, in first-use order
+	private int numTouched;
+	private long transfersIn, transfersOut;
+	
+	/**
+	 * @param numAccounts number of accounts transfers may refer to
+	 * @param window largest number of transactions netted at once
+	 */
+	public PairNetter(int numAccounts, int window) {
+		if ((long) numAccounts * numAccounts > MAX_CELLS) {
+			throw new RuntimeException("Netting supports at most " + 
+					(int) Math.sqrt(MAX_CELLS) + " accounts");
+		}
+		this.numAccounts = numAccounts;
+		netAmounts = new long[numAccounts * numAccounts];
+		counts     = new int[numAccounts * numAccounts];
+		touched    = new int[Math.min(window, numAccounts * numAccounts)];
+		numTouched = 0;
+	}
+	
+	/**
+	 * Nets every transaction in the batch and applies the result with the
+	 * given TransferEngine.
+	 */
+	public void applyTo(TransactionBatch batch, TransferEngine engine) {
+		for (int i = 0; i < batch.size(); i++) {
+			add(batch.fromAccounts[i], batch.toAccounts[i], batch.amounts[i]);
+		}
+		transfersIn += batch.size();
+		flush(engine);
+	}
+	
+	/**
+	 * Adds one transfer to its pair's cell.
+	 */
+	private void add(int from, int to, int amount) {
+		int cell;
+		if (from <= to) {
+			cell = from * numAccounts + to;
+			netAmounts[cell] += amount;
+		} else {
+			cell = to * numAccounts + from;
+			netAmounts[cell] -= amount;
+		}
+		if (counts[cell]++ == 0) touched[numTouched++] = cell;
+	}
+	
+	/**
+	 * Applies one net transfer per touched pair and clears their cells.
+	 */
+	private void flush(TransferEngine engine) {
+		for (int i = 0; i < numTouched; i++) {
+			int cell = touched[i];
+			int low  = cell / numAccounts;
+			int high = cell % numAccounts;
+			long net = netAmounts[cell];
+			if (net >= 0) {
+				applyNet(engine, low, high, net, counts[cell]);
+			} else {
+				applyNet(engine, high, low, -net, counts[cell]);
+			}
+			netAmounts[cell] = 0;
+			counts[cell]     = 0;
+		}
+		transfersOut += numTouched;
+		numTouched = 0;
+	}
+	
+	/**
+	 * Moves a non-negative net amount in int-sized parts, counting the 
+	 * transfers it stands for with the last part.
+	 */
+	private static void applyNet(TransferEngine engine, int from, int to, 
+			long net, int count) {
+		while (net > Integer.MAX_VALUE) {
+			engine.transferNet(from, to, Integer.MAX_VALUE, 0);
+			net -= Integer.MAX_VALUE;
+		}
+		engine.transferNet(from, to, (int) net, count);
+	}
+	
+	/**
+	 * @return the number of transactions netted so far
+	 */
+	public long getTransfersIn() {
+		return transfersIn;
+	}
+	
+	/**
+	 * @return the number of net transfers applied so far
+	 */
+	public long getTransfersOut() {
+		return transfersOut;
+	}
+}
@@ -0,0 +1,137 @@
+package assign4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Loads a transaction file with several parser threads. The file is split
+ * into byte ranges whose boundaries fall just after a newline, and each 
+ * range is memory-mapped and parsed by its own MappedTransactionParser, 
+ * feeding its own TransactionSink; the same thread-safe sink may be passed
+ * for every range. Transactions reach the sink in no particular order, 
+ * which is fine since transfers commute as far as final balances are 
+ * concerned.
+ */
+public class ParallelTransactionLoader {
+
+	private static final int SCAN_BYTES = 4096; // read size for boundary scans
+	
+	private final FileChannel channel;
+	private final TransactionSink[] sinks;
+	private final CountDownLatch latch;
+	private final long[] bounds;
+	private final long[] counts;
+	private volatile Exception failure;
+	
+	/**
+	 * @param channel the open transaction file
+	 * @param sinks one sink per parser thread
+	 */
+	public ParallelTransactionLoader(FileChannel channel, 
+			TransactionSink[] sinks) throws IOException {
+		if (sinks.length < 1) {
+			throw new RuntimeException("Invalid number of parsers requested");
+		}
+		this.channel = channel;
+		this.sinks   = sinks;
+		latch   = new CountDownLatch(sinks.length);
+		bounds  = splitRanges(channel, sinks.length);
+		counts  = new long[sinks.length];
+		failure = null;
+	}
+	
+	/**
+	 * Parses the whole file with one thread per range, returning once every 
+	 * range has been parsed.
+	 * @return the total number of transactions parsed
+	 */
+	public long load() throws Exception {
+		for (int i = 0; i < counts.length; i++) {
+			new ParserWorker(i).start();
+		}
+		latch.await();
+		if (failure != null) throw failure;
+		
+		long total = 0;
+		for (long count : counts) total += count;
+		return total;
+	}
+	
+	/**
+	 * Splits the channel into numRanges contiguous byte ranges of roughly 
+	 * equal size, each starting at the beginning of a line. Ranges may be 
+	 * empty when the file has fewer lines than ranges.
+	 * @return numRanges + 1 offsets; range i is [bounds[i], bounds[i+1])
+	 */
+	static long[] splitRanges(FileChannel channel, int numRanges) 
+			throws IOException {
+		long size = channel.size();
+		long[] bounds = new long[numRanges + 1];
+		ByteBuffer scan = ByteBuffer.allocate(SCAN_BYTES);
+		
+		bounds[numRanges] = size;
+		for (int i = 1; i < numRanges; i++) {
+			// Move the even split point forward to just past the next newline
+			long pos = Math.max(size / numRanges * i, bounds[i - 1]);
+			bounds[i] = size;
+			while (pos < size && bounds[i] == size) {
+				scan.clear();
+				int read = channel.read(scan, pos);
+				if (read <= 0) break;
+				for (int j = 0; j < read; j++) {
+					if (scan.get(j) == '\n') {
+						bounds[i] = pos + j + 1;
+						break;
+					}
+				}
+				pos += read;
+			}
+		}
+		return bounds;
+	}
+	
+	/**
+	 * Parser thread responsible for one range of the file. Records its
+	 * count, or the first failure, and decrements the latch when done.
+	 */
+	private class ParserWorker extends Thread {
+		private final int range;
+		
+		public ParserWorker(int range) {
+			this.range = range;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				MappedTransactionParser parser = 
+						new MappedTransactionParser(sinks[range]);
+				counts[range] = parser.parse(channel, bounds[range], 
+											 bounds[range + 1]);
+			} catch (Exception e) {
+				failure = e;
+			}
+			latch.countDown(); // signal done
+		}
+	}
+	
+	/**
+	 * Convenience method which opens the named file and loads it with one
+	 * parser thread per sink.
+	 * @return the total number of transactions parsed
+	 */
+	public static long load(String fileName, TransactionSink[] sinks) 
+			throws Exception {
+		FileChannel channel = FileChannel.open( Paths.get(fileName), 
+												StandardOpenOption.READ );
+		try {
+			return new ParallelTransactionLoader(channel, sinks).load();
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package assign4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-writer execution mode in which each worker thread exclusively owns
+ * the accounts whose ID maps to its partition (id % numPartitions), so no 
+ * account is ever locked. Producers route each transaction to the inbox of
+ * the partition owning its from account. That owner applies the withdrawal 
+ * and, if it does not also own the to account, forwards the deposit leg to
+ * the owner of the to account through that partition's inbox.
+ * 
+ * Every inbox entry is a TransactionBatch. A worker tells the two kinds of
+ * entries apart by ownership: entries whose from account it owns are whole
+ * transfers, all others are forwarded deposits. Producer batches are limited
+ * by a per-partition Semaphore for backpressure, while forwarded deposits 
+ * are never blocked so that workers cannot deadlock on each other's inboxes.
+ */
+public class PartitionedExecutor implements TransactionExecutor {
+
+	static final int DEFAULT_BATCH = 256;
+	
+	// END: producers are done; FINAL: every deposit has been forwarded 
+	private static final TransactionBatch END   = new TransactionBatch(0);
+	private static final TransactionBatch FINAL = new TransactionBatch(0);
+	
+	private final int numAccounts;
+	private final int numPartitions;
+	private final int batchSize;
+	private final PartitionWorker[] workers;
+	private final AtomicInteger pendingSenders;
+	private final CountDownLatch latch;
+	private long startNanos;
+	private volatile long endNanos;
+	
+	/**
+	 * @param numAccounts total number of accounts, each with INIT_BALANCE
+	 * @param numPartitions number of partitions, one worker thread each
+	 * @param batchSize transactions per inbox batch, or DEFAULT_BATCH if < 2
+	 * @param latch counted down once by each worker when it is done
+	 */
+	public PartitionedExecutor(int numAccounts, int numPartitions, 
+			int batchSize, CountDownLatch latch) {
+		if (numPartitions < 1) {
+			throw new RuntimeException("Invalid number of partitions requested");
+		}
+		this.numAccounts   = numAccounts;
+		this.numPartitions = numPartitions;
+		this.batchSize     = (batchSize > 1) ? batchSize : DEFAULT_BATCH;
+		this.latch         = latch;
+		pendingSenders     = new AtomicInteger(numPartitions);
+		
+		int permits = Math.max(2, Bank.QUEUE_CAPACITY / this.batchSize);
+		workers = new PartitionWorker[numPartitions];
+		for (int i = 0; i < numPartitions; i++) {
+			workers[i] = new PartitionWorker(i, permits);
+		}
+	}
+	
+	/**
+	 * Calls .start() on every partition worker
+	 */
+	@Override
+	public void start() {
+		startNanos = System.nanoTime();
+		for (PartitionWorker worker : workers) {
+			worker.start();
+		}
+	}
+	
+	/**
+	 * Returns a sink routing transactions to their owning partitions. Each
+	 * producer thread needs its own sink.
+	 */
+	@Override
+	public TransactionSink newSink() {
+		return new PartitionSink();
+	}
+	
+	@Override
+	public void finish() throws InterruptedException {
+		for (PartitionWorker worker : workers) {
+			worker.inbox.put(END);
+		}
+	}
+	
+	/**
+	 * Prints the number of transactions, how many deposits had to be 
+	 * forwarded to another partition, and the transfer throughput.
+	 */
+	@Override
+	public void printStats() {
+		long numTransactions = 0, numForwarded = 0;
+		for (PartitionWorker worker : workers) {
+			numTransactions += worker.numTransfers;
+			numForwarded    += worker.numForwarded;
+		}
+		double seconds = Math.max(endNanos - startNanos, 1) / 1e9;
+		System.err.printf("partitioned: %d transactions, %d deposits " + 
+				"forwarded, %.0f transfers/s%n", numTransactions, numForwarded,
+				numTransactions / seconds);
+	}
+	
+	private int owner(int id) {
+		return id % numPartitions;
+	}
+	
+	@Override
+	public int numAccounts() {
+		return numAccounts;
+	}
+	
+	/**
+	 * Only consistent once the workers are done.
+	 */
+	@Override
+	public long getBalance(int id) {
+		return workers[owner(id)].balances[id / numPartitions];
+	}
+	
+	/**
+	 * Only consistent once the workers are done.
+	 */
+	@Override
+	public long getTransactions(int id) {
+		return workers[owner(id)].transactions[id / numPartitions];
+	}
+	
+	/**
+	 * Worker thread which owns one partition of the accounts, stored in
+	 * plain primitive arrays indexed by id / numPartitions.
+	 */
+	private class PartitionWorker extends Thread {
+		private final int partition;
+		private final LinkedBlockingQueue<TransactionBatch> inbox;
+		private final Semaphore permits;
+		private final long[] balances;
+		private final long[] transactions;
+		private final TransactionBatch[] outgoing; // deposits per partition
+		private long numTransfers, numForwarded;
+		
+		public PartitionWorker(int partition, int permits) {
+			this.partition = partition;
+			this.permits   = new Semaphore(permits);
+			inbox = new LinkedBlockingQueue<TransactionBatch>();
+			
+			int owned = (numAccounts - partition + numPartitions - 1) / numPartitions;
+			balances     = new long[owned];
+			transactions = new long[owned];
+			for (int i = 0; i < owned; i++) {
+				balances[i] = Bank.INIT_BALANCE;
+			}
+			
+			outgoing = new TransactionBatch[numPartitions];
+			for (int i = 0; i < numPartitions; i++) {
+				outgoing[i] = new TransactionBatch(batchSize);
+			}
+		}
+		
+		/**
+		 * Takes batches from the inbox and applies them until FINAL arrives.
+		 * Outgoing deposits are flushed whenever the inbox runs dry, and on
+		 * END, after which this worker will never forward anything again.
+		 */
+		@Override
+		public void run() {
+			try {
+				TransactionBatch currBatch;
+				
+				while (true) {
+					currBatch = inbox.poll();
+					if (currBatch == null) {
+						flushDeposits();
+						currBatch = inbox.take();
+					}
+					
+					if (currBatch == FINAL) break; // done
+					if (currBatch == END) {
+						flushDeposits();
+						if (pendingSenders.decrementAndGet() == 0) {
+							endNanos = System.nanoTime();
+							for (PartitionWorker worker : workers) {
+								worker.inbox.put(FINAL);
+							}
+						}
+						continue;
+					}
+					
+					boolean fromProducer = 
+							owner(currBatch.fromAccounts[0]) == partition;
+					apply(currBatch);
+					if (fromProducer) permits.release();
+				}
+				latch.countDown(); // signal done
+				
+			} catch (Exception e) { e.printStackTrace(); }
+		}
+		
+		/**
+		 * Applies every entry in the batch: whole transfers out of accounts
+		 * owned here, and deposits forwarded by other partitions.
+		 */
+		private void apply(TransactionBatch batch) throws InterruptedException {
+			int from, to, amount;
+			for (int i = 0; i < batch.size(); i++) {
+				from   = batch.fromAccounts[i];
+				to     = batch.toAccounts[i];
+				amount = batch.amounts[i];
+				
+				if (owner(from) == partition) {
+					balances[from / numPartitions] -= amount; // withdraw
+					transactions[from / numPartitions]++;
+					numTransfers++;
+					if (owner(to) != partition) {
+						forward(from, to, amount);
+						continue;
+					}
+				}
+				balances[to / numPartitions] += amount; // deposit
+				transactions[to / numPartitions]++;
+			}
+		}
+		
+		private void forward(int from, int to, int amount) 
+				throws InterruptedException {
+			int dest = owner(to);
+			numForwarded++;
+			if (outgoing[dest].add(from, to, amount)) {
+				workers[dest].inbox.put(outgoing[dest]);
+				outgoing[dest] = new TransactionBatch(batchSize);
+			}
+		}
+		
+		private void flushDeposits() throws InterruptedException {
+			for (int dest = 0; dest < numPartitions; dest++) {
+				if (outgoing[dest].size() > 0) {
+					workers[dest].inbox.put(outgoing[dest]);
+					outgoing[dest] = new TransactionBatch(batchSize);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Producer-side sink which batches transactions by the partition owning
+	 * their from account, waiting for a permit before each hand-off.
+	 */
+	private class PartitionSink implements TransactionSink {
+		private final TransactionBatch[] pending;
+		
+		public PartitionSink() {
+			pending = new TransactionBatch[numPartitions];
+			for (int i = 0; i < numPartitions; i++) {
+				pending[i] = new TransactionBatch(batchSize);
+			}
+		}
+		
+		@Override
+		public void accept(int from, int to, int amount) 
+				throws InterruptedException {
+			int dest = owner(from);
+			if (pending[dest].add(from, to, amount)) send(dest);
+		}
+		
+		@Override
+		public void flush() throws InterruptedException {
+			for (int dest = 0; dest < numPartitions; dest++) {
+				if (pending[dest].size() > 0) send(dest);
+			}
+		}
+		
+		private void send(int dest) throws InterruptedException {
+			workers[dest].permits.acquire();
+			workers[dest].inbox.put(pending[dest]);
+			pending[dest] = new TransactionBatch(batchSize);
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package assign4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Staged execution mode in the style of the LMAX Disruptor: transactions
+ * flow through three stages, parse, route and apply, over one
+ * preallocated ring of slots, and each stage only follows the sequence
+ * cursor of the stage before it, so no entry is ever copied or queued
+ * twice:
+ *
+ *   - parse: the loader threads claim the next sequence, wait until the
+ *     slowest applier has freed its slot, fill it, and publish it
+ *   - route: one thread follows the published slots in order, checks the
+ *     account IDs and stores the applier owning each account, then
+ *     advances the routed cursor over the whole batch it found
+ *   - apply: numAppliers threads follow the routed cursor. Each owns a
+ *     contiguous range of accounts, and applies the withdrawal of every
+ *     entry whose from account it owns and the deposit of every entry whose
+ *     to account it owns, so accounts are never locked or shared
+ *
+ * Stages wait for their barrier with a WaitStrategy: busy-spin, yield or
+ * park. One in SAMPLE_EVERY entries is stamped when published and routed,
+ * giving each stage's latency, and each stage records the occupancy it
+ * finds, the number of entries waiting for it when it starts a batch.
+ */
+public class PipelineExecutor implements TransactionExecutor {
+	
+	static final int DEFAULT_CAPACITY = 1 << 14;
+	static final int SAMPLE_EVERY     = 64; // a power of two
+	static final long PARK_NANOS      = 20000;
+	
+	// Cursor indices, a few cache lines apart; appliers follow ROUTED
+	private static final int CLAIM  = 0;
+	private static final int ROUTED = 16;
+	private static final int PAD    = 16;
+	
+	/**
+	 * How a stage waits for the stage before it, or a producer for space.
+	 */
+	public interface WaitStrategy {
+		/**
+		 * @param tries number of times the caller has already waited for
+		 * the same sequence
+		 */
+		public void idle(int tries);
+	}
+	
+	/**
+	 * Creates a WaitStrategy by name: "spin" busy-spins, "yield" yields the
+	 * CPU, and "park" parks for PARK_NANOS.
+	 */
+	public static WaitStrategy waitStrategy(String name) {
+		if (name.equals("spin")) {
+			return new WaitStrategy() {
+				public void idle(int tries) {
+					Thread.onSpinWait();
+				}
+			};
+		} else if (name.equals("yield")) {
+			return new WaitStrategy() {
+				public void idle(int tries) {
+					Thread.yield();
+				}
+			};
+		} else if (name.equals("park")) {
+			return new WaitStrategy() {
+				public void idle(int tries) {
+					LockSupport.parkNanos(PARK_NANOS);
+				}
+			};
+		}
+		throw new RuntimeException("Unknown wait strategy '" + name + "'");
+	}
+	
+	private final int numAccounts;
+	private final int numAppliers;
+	private final int capacity;
+	private final int mask;
+	private final WaitStrategy wait;
+	private final CountDownLatch latch;
+	
+	// The ring: one slot per sequence modulo capacity
+	private final int[] fromAccounts, toAccounts, amounts;
+	private final int[] fromOwners, toOwners; // -1 marks an invalid entry
+	private final long[] publishStamps, routeStamps;
+	private final AtomicLongArray published; // sequence + 1 once filled
+	private final AtomicLongArray cursors;
+	private volatile long end = Long.MAX_VALUE; // sequences ever claimed
+	
+	// Accounts, each written only by the applier owning it
+	private final long[] balances, transactions;
+	
+	private final RouteStage router;
+	private final ApplyStage[] appliers;
+	private final LongAdder stalls;
+	private long startNanos;
+	private volatile long endNanos;
+	
+	/**
+	 * @param numAccounts total number of accounts, each with INIT_BALANCE
+	 * @param numAppliers number of apply threads, each counting down latch
+	 * once done; routing takes one more thread
+	 * @param minCapacity number of ring slots, rounded up to a power of two
+	 * @param wait how stages wait for each other
+	 */
+	public PipelineExecutor(int numAccounts, int numAppliers, int minCapacity,
+			WaitStrategy wait, CountDownLatch latch) {
+		if (numAppliers < 1) {
+			throw new RuntimeException("Invalid number of appliers requested");
+		}
+		int size = SAMPLE_EVERY;
+		while (size < minCapacity) size <<= 1;
+		this.numAccounts = numAccounts;
+		this.numAppliers = numAppliers;
+		this.capacity    = size;
+		this.mask        = size - 1;
+		this.wait        = wait;
+		this.latch       = latch;
+		
+		fromAccounts  = new int[size];
+		toAccounts    = new int[size];
+		amounts       = new int[size];
+		fromOwners    = new int[size];
+		toOwners      = new int[size];
+		publishStamps = new long[size];
+		routeStamps   = new long[size];
+		published     = new AtomicLongArray(size);
+		cursors       = new AtomicLongArray(ROUTED + PAD * (numAppliers + 1));
+		
+		balances     = new long[numAccounts];
+		transactions = new long[numAccounts];
+		for (int i = 0; i < numAccounts; i++) {
+			balances[i] = Bank.INIT_BALANCE;
+		}
+		
+		router   = new RouteStage();
+		appliers = new ApplyStage[numAppliers];
+		for (int i = 0; i < numAppliers; i++) {
+			appliers[i] = new ApplyStage(i);
+		}
+		stalls = new LongAdder();
+	}
+	
+	/**
+	 * Starts the route thread and every apply thread.
+	 */
+	@Override
+	public void start() {
+		startNanos = System.nanoTime();
+		router.start();
+		for (ApplyStage applier : appliers) {
+			applier.start();
+		}
+	}
+	
+	/**
+	 * Returns a sink publishing into the ring. Each producer thread needs
+	 * its own sink.
+	 */
+	@Override
+	public TransactionSink newSink() {
+		return new RingSink();
+	}
+	
+	/**
+	 * Tells the stages how many sequences were claimed, so they stop once
+	 * they have processed them all. Does not block.
+	 */
+	@Override
+	public void finish() {
+		end = cursors.get(CLAIM);
+	}
+	
+	/**
+	 * @return the index of the cursor of applier i
+	 */
+	private static int applied(int i) {
+		return ROUTED + PAD * (i + 1);
+	}
+	
+	/**
+	 * @return the sequence below which every applier is done
+	 */
+	private long minApplied() {
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < numAppliers; i++) {
+			min = Math.min(min, cursors.get( applied(i) ));
+		}
+		return min;
+	}
+	
+	/**
+	 * @return the applier owning the account, or -1 if there is no such
+	 * account
+	 */
+	private int ownerOf(int id) {
+		if (id < 0 || id >= numAccounts) return -1;
+		return (int) ((long) id * numAppliers / numAccounts);
+	}
+	
+	/**
+	 * Parse stage end of the ring, owned by one producer thread. Claims are
+	 * shared with the other producers; the lowest free sequence seen is
+	 * cached so the applied cursors are only read when the ring looks full.
+	 */
+	private class RingSink implements TransactionSink {
+		private long gate = 0; // sequences below gate + capacity are free
+		
+		@Override
+		public void accept(int from, int to, int amount) {
+			long seq = cursors.getAndIncrement(CLAIM);
+			if (seq >= gate + capacity) {
+				int tries = 0;
+				while (seq >= (gate = minApplied()) + capacity) {
+					if (tries == 0) stalls.increment();
+					wait.idle(tries++);
+				}
+			}
+			int slot = (int) seq & mask;
+			fromAccounts[slot] = from;
+			toAccounts[slot]   = to;
+			amounts[slot]      = amount;
+			if ((seq & (SAMPLE_EVERY - 1)) == 0) {
+				publishStamps[slot] = System.nanoTime();
+			}
+			published.set(slot, seq + 1);
+		}
+		
+		@Override
+		public void flush() {
+			// Every entry is published as soon as it is accepted
+		}
+	}
+	
+	/**
+	 * Occupancy and latency seen by one stage thread.
+	 */
+	private static class StageStats {
+		final LatencyHistogram latency = new LatencyHistogram();
+		long batches, waiting, maxWaiting;
+		
+		/**
+		 * Records that a batch of entries was waiting for the stage.
+		 */
+		void batch(long size) {
+			batches++;
+			waiting += size;
+			if (size > maxWaiting) maxWaiting = size;
+		}
+		
+		void add(StageStats other) {
+			latency.add(other.latency);
+			batches += other.batches;
+			waiting += other.waiting;
+			maxWaiting = Math.max(maxWaiting, other.maxWaiting);
+		}
+	}
+	
+	/**
+	 * Route stage: follows the published slots in sequence order, stores
+	 * the owners of each entry's accounts, and advances the routed cursor.
+	 */
+	private class RouteStage extends Thread {
+		final StageStats stats = new StageStats();
+		long invalid;
+		
+		@Override
+		public void run() {
+			try {
+				long next = 0;
+				int tries = 0;
+				while (true) {
+					// Find how far the slots are published without a gap
+					long avail = next;
+					while (avail < next + capacity &&
+						   published.get((int) avail & mask) == avail + 1) {
+						avail++;
+					}
+					if (avail == next) {
+						if (next >= end) break; // done
+						wait.idle(tries++);
+						continue;
+					}
+					tries = 0;
+					stats.batch(avail - next);
+					
+					for (long seq = next; seq < avail; seq++) {
+						int slot = (int) seq & mask;
+						int fromOwner = ownerOf( fromAccounts[slot] );
+						int toOwner   = ownerOf( toAccounts[slot] );
+						if (fromOwner < 0 || toOwner < 0) {
+							fromOwner = -1;
+							toOwner   = -1;
+							invalid++;
+						}
+						fromOwners[slot] = fromOwner;
+						toOwners[slot]   = toOwner;
+						if ((seq & (SAMPLE_EVERY - 1)) == 0) {
+							long now = System.nanoTime();
+							stats.latency.record(now - publishStamps[slot]);
+							routeStamps[slot] = now;
+						}
+					}
+					cursors.set(ROUTED, avail);
+					next = avail;
+				}
+			} catch (Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	/**
+	 * Apply stage: follows the routed cursor and applies the legs of every
+	 * entry touching the accounts this applier owns.
+	 */
+	private class ApplyStage extends Thread {
+		final StageStats stats = new StageStats();
+		final int id;
+		long applied;
+		
+		ApplyStage(int id) {
+			this.id = id;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				long next = 0;
+				int tries = 0;
+				while (true) {
+					long avail = cursors.get(ROUTED);
+					if (avail == next) {
+						if (next >= end) break; // done
+						wait.idle(tries++);
+						continue;
+					}
+					tries = 0;
+					stats.batch(avail - next);
+					
+					for (long seq = next; seq < avail; seq++) {
+						int slot = (int) seq & mask;
+						if (fromOwners[slot] == id) {
+							int from = fromAccounts[slot];
+							balances[from] -= amounts[slot];
+							transactions[from]++;
+							applied++;
+							if ((seq & (SAMPLE_EVERY - 1)) == 0) {
+								stats.latency.record(
+										System.nanoTime() - routeStamps[slot] );
+							}
+						}
+						if (toOwners[slot] == id) {
+							int to = toAccounts[slot];
+							balances[to] += amounts[slot];
+							transactions[to]++;
+						}
+					}
+					cursors.set(applied(id), avail); // frees the slots
+					next = avail;
+				}
+				endNanos = System.nanoTime(); // the last applier's stands
+				latch.countDown(); // signal done
+			} catch (Exception e) { e.printStackTrace(); }
+		}
+	}
+	
+	/**
+	 * Prints the throughput, and each stage's latency and mean and maximum
+	 * occupancy, to stderr. Only valid once the workers are done.
+	 */
+	@Override
+	public void printStats() {
+		StageStats apply = new StageStats();
+		long transfers = 0;
+		for (ApplyStage applier : appliers) {
+			apply.add(applier.stats);
+			transfers += applier.applied;
+		}
+		double seconds = (endNanos - startNanos) / 1e9;
+		System.err.printf("pipeline: %d transfers (%d invalid) in %.3f s " +
+				"(%.0f/s), ring %d, %d appliers%n", transfers, router.invalid,
+				seconds, transfers / seconds, capacity, numAppliers);
+		System.err.printf("pipeline parse: %d stalls on a full ring%n",
+				stalls.sum());
+		printStage("route", router.stats);
+		printStage("apply", apply);
+	}
+	
+	private static void printStage(String name, StageStats stats) {
+		System.err.printf("pipeline %s: occupancy mean %.1f max %d, " +
+				"latency p50 %d ns p99 %d ns%n", name,
+				stats.batches == 0 ? 0.0 : (double) stats.waiting / stats.batches,
+				stats.maxWaiting, stats.latency.getPercentile(50),
+				stats.latency.getPercentile(99));
+	}
+	
+	@Override
+	public int numAccounts() {
+		return numAccounts;
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return balances[id];
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return transactions[id];
+	}
+}
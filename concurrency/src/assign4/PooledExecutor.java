@@ -0,0 +1,200 @@
+package assign4;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransactionExecutor which runs TransactionBatches as tasks on a pluggable
+ * ExecutorService backend, applying them with a shared TransferEngine:
+ * 
+ *   "platform" - a fixed pool of numWorkers platform threads
+ *   "forkjoin" - a work-stealing ForkJoinPool with numWorkers parallelism
+ *   "virtual"  - a new virtual thread per task (needs a JDK with virtual 
+ *                threads, looked up reflectively)
+ * 
+ * Shutdown is structured: finish() shuts the service down and waits for 
+ * every submitted task rather than sending poison pills. Producers are held
+ * back by a Semaphore of task permits, since the services' own queues are
+ * unbounded. All backends report the same metrics.
+ */
+public class PooledExecutor implements TransactionExecutor {
+
+	static final int DEFAULT_BATCH = 256;
+	
+	private final String backend;
+	private final TransferEngine engine;
+	private final int numWorkers;
+	private final int batchSize;
+	private final CountDownLatch latch;
+	private final Semaphore permits;
+	private final LongAdder numTasks, numTransfers, busyNanos;
+	private ExecutorService service;
+	private long startNanos, endNanos;
+	
+	/**
+	 * @param backend name of the ExecutorService backend to run tasks on
+	 * @param engine engine used to apply every transfer
+	 * @param numWorkers number of pooled threads; ignored by "virtual"
+	 * @param batchSize transactions per task, or DEFAULT_BATCH if < 2
+	 * @param latch counted down to zero once every task has completed
+	 */
+	public PooledExecutor(String backend, TransferEngine engine, 
+			int numWorkers, int batchSize, CountDownLatch latch) {
+		this.backend    = backend;
+		this.engine     = engine;
+		this.numWorkers = numWorkers;
+		this.batchSize  = (batchSize > 1) ? batchSize : DEFAULT_BATCH;
+		this.latch      = latch;
+		
+		permits      = new Semaphore( Math.max(numWorkers, 
+									  Bank.QUEUE_CAPACITY / this.batchSize) );
+		numTasks     = new LongAdder();
+		numTransfers = new LongAdder();
+		busyNanos    = new LongAdder();
+	}
+	
+	/**
+	 * Creates the ExecutorService for the backend.
+	 */
+	@Override
+	public void start() {
+		if (backend.equals("platform")) {
+			service = Executors.newFixedThreadPool(numWorkers);
+		} else if (backend.equals("forkjoin")) {
+			service = new ForkJoinPool(numWorkers);
+		} else if (backend.equals("virtual")) {
+			service = newVirtualThreadExecutor();
+		} else {
+			throw new RuntimeException("Unknown backend '" + backend + "'");
+		}
+		startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Looks up Executors.newVirtualThreadPerTaskExecutor reflectively, so 
+	 * this class still compiles and runs other backends on older JDKs.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = 
+					Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			throw new RuntimeException("Virtual threads are not available on " +
+					"Java " + System.getProperty("java.version"), e);
+		}
+	}
+	
+	/**
+	 * Returns a sink which batches transactions into tasks. Each producer 
+	 * thread needs its own sink.
+	 */
+	@Override
+	public TransactionSink newSink() {
+		return new TaskSink();
+	}
+	
+	/**
+	 * Shuts the service down and waits for every task to complete before
+	 * counting the latch down to zero.
+	 */
+	@Override
+	public void finish() throws InterruptedException {
+		service.shutdown();
+		while (!service.awaitTermination(1, TimeUnit.SECONDS)) {
+			continue; // still draining
+		}
+		endNanos = System.nanoTime();
+		while (latch.getCount() > 0) {
+			latch.countDown();
+		}
+	}
+	
+	/**
+	 * Prints the number of transfers and tasks, the transfer throughput, and
+	 * the average time spent running each task.
+	 */
+	@Override
+	public void printStats() {
+		double seconds = Math.max(endNanos - startNanos, 1) / 1e9;
+		long tasks = numTasks.sum();
+		System.err.printf("%s: %d transactions in %d tasks, %.0f transfers/s, " + 
+				"%.1f us per task%n", backend, numTransfers.sum(), tasks, 
+				numTransfers.sum() / seconds, 
+				(tasks == 0) ? 0.0 : busyNanos.sum() / 1e3 / tasks);
+	}
+	
+	@Override
+	public int numAccounts() {
+		return engine.numAccounts();
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return engine.getBalance(id);
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return engine.getTransactions(id);
+	}
+	
+	/**
+	 * Task applying one batch, recording metrics and releasing its permit.
+	 */
+	private class BatchTask implements Runnable {
+		private final TransactionBatch batch;
+		
+		public BatchTask(TransactionBatch batch) {
+			this.batch = batch;
+		}
+		
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			try {
+				batch.applyTo(engine);
+				numTransfers.add( batch.size() );
+				numTasks.increment();
+			} finally {
+				busyNanos.add(System.nanoTime() - start);
+				permits.release();
+			}
+		}
+	}
+	
+	/**
+	 * Producer-side sink which submits a BatchTask for every full batch,
+	 * waiting for a permit first.
+	 */
+	private class TaskSink implements TransactionSink {
+		private TransactionBatch batch;
+		
+		public TaskSink() {
+			batch = new TransactionBatch(batchSize);
+		}
+		
+		@Override
+		public void accept(int from, int to, int amount) 
+				throws InterruptedException {
+			if (batch.add(from, to, amount)) submit();
+		}
+		
+		@Override
+		public void flush() throws InterruptedException {
+			if (batch.size() > 0) submit();
+		}
+		
+		private void submit() throws InterruptedException {
+			permits.acquire();
+			service.execute( new BatchTask(batch) );
+			batch = new TransactionBatch(batchSize);
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package assign4;
+
+/**
+ * Transaction carrying the System.nanoTime() at which it was ingested, so
+ * the worker applying it can measure the ingest-to-apply latency.
+ */
+public class StampedTransaction extends Transaction {
+
+	final long stamp;
+	
+	public StampedTransaction(int from, int to, int amount, long stamp) {
+		super(from, to, amount);
+		this.stamp = stamp;
+	}
+}
@@ -0,0 +1,325 @@
+package assign4;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Small software transactional memory over the accounts of a Bank, in the
+ * style of TL2. Every account's balance and number of transactions form one
+ * transactional variable guarded by a versioned lock word: the version of
+ * the last commit that wrote it, shifted left, with the lowest bit set while
+ * a committer holds it. A global version clock orders commits.
+ *
+ *   - begin: sample the clock as the transaction's read version
+ *   - read: read the lock word, the value, and the lock word again; the
+ *     read is consistent if the word did not change, is unlocked, and is
+ *     no newer than the read version, otherwise the transaction aborts.
+ *     Values already written by the transaction come from its write set
+ *   - write: buffer the new value in the write set
+ *   - commit: try-lock every account in the write set (aborting rather
+ *     than waiting, so there is no deadlock), increment the clock to get
+ *     the write version, revalidate the read set unless no other commit
+ *     happened since begin, then write the values and release each lock
+ *     with the write version
+ *
+ * Transactions are written as Atomic blocks, which may read and write any
+ * set of accounts, and run by atomically(), which retries aborted attempts
+ * after consulting a ContentionPolicy. Each thread reuses one Transaction,
+ * and aborts are signalled with a preallocated exception, so a transaction
+ * allocates nothing once its sets have grown to size.
+ */
+public class Stm {
+	
+	/**
+	 * Body of a transaction. It may be run several times, and must only
+	 * touch account state through the given Transaction.
+	 */
+	public interface Atomic {
+		public void run(Transaction tx);
+	}
+	
+	/**
+	 * Decides how long a thread waits before retrying an aborted attempt.
+	 */
+	public interface ContentionPolicy {
+		/**
+		 * @param attempt number of attempts aborted so far, from 1
+		 */
+		public void onAbort(int attempt);
+	}
+	
+	/**
+	 * Creates a ContentionPolicy by name: "immediate" retries at once,
+	 * "yield" yields the CPU first, and "backoff" parks for a random time
+	 * whose bound doubles with every abort, up to MAX_BACKOFF_NANOS.
+	 */
+	public static ContentionPolicy policy(String name) {
+		if (name.equals("immediate")) {
+			return new ContentionPolicy() {
+				public void onAbort(int attempt) {
+					Thread.onSpinWait();
+				}
+			};
+		} else if (name.equals("yield")) {
+			return new ContentionPolicy() {
+				public void onAbort(int attempt) {
+					Thread.yield();
+				}
+			};
+		} else if (name.equals("backoff")) {
+			return new ContentionPolicy() {
+				public void onAbort(int attempt) {
+					long bound = Math.min(MAX_BACKOFF_NANOS,
+							MIN_BACKOFF_NANOS << Math.min(attempt, 20));
+					LockSupport.parkNanos(
+							ThreadLocalRandom.current().nextLong(bound) + 1 );
+				}
+			};
+		}
+		throw new RuntimeException("Unknown contention policy '" + name + "'");
+	}
+	
+	static final long MIN_BACKOFF_NANOS = 100;
+	static final long MAX_BACKOFF_NANOS = 100000;
+	
+	// Thrown to unwind an attempt which has to abort; never escapes atomically
+	private static final RuntimeException ABORT =
+			new RuntimeException("STM abort", null, false, false) {};
+	
+	private final AtomicLong clock;
+	private final AtomicLongArray locks;
+	private final AtomicLongArray balances;
+	private final AtomicLongArray transactions;
+	private final ContentionPolicy policy;
+	private final LongAdder commits, aborts;
+	private final ThreadLocal<Transaction> current;
+	
+	/**
+	 * @param numAccounts number of accounts, each with initBalance
+	 * @param policy how threads wait after an abort
+	 */
+	public Stm(int numAccounts, long initBalance, ContentionPolicy policy) {
+		clock        = new AtomicLong();
+		locks        = new AtomicLongArray(numAccounts);
+		balances     = new AtomicLongArray(numAccounts);
+		transactions = new AtomicLongArray(numAccounts);
+		for (int i = 0; i < numAccounts; i++) {
+			balances.set(i, initBalance);
+		}
+		this.policy = policy;
+		commits = new LongAdder();
+		aborts  = new LongAdder();
+		current = new ThreadLocal<Transaction>() {
+			@Override
+			protected Transaction initialValue() {
+				return new Transaction();
+			}
+		};
+	}
+	
+	/**
+	 * Runs the block as one transaction, retrying until an attempt commits.
+	 */
+	public void atomically(Atomic block) {
+		Transaction tx = current.get();
+		int attempt = 0;
+		while (true) {
+			tx.begin();
+			try {
+				block.run(tx);
+				if (tx.commit()) {
+					commits.increment();
+					return;
+				}
+			} catch (RuntimeException e) {
+				if (e != ABORT) throw e;
+			}
+			aborts.increment();
+			policy.onAbort(++attempt);
+		}
+	}
+	
+	public int numAccounts() {
+		return balances.length();
+	}
+	
+	/**
+	 * Reads an account's balance outside any transaction, e.g. once every
+	 * worker is done. Not consistent with concurrent commits.
+	 */
+	public long getBalance(int id) {
+		return balances.get(id);
+	}
+	
+	/**
+	 * Reads an account's number of transactions outside any transaction.
+	 */
+	public long getTransactions(int id) {
+		return transactions.get(id);
+	}
+	
+	/**
+	 * Overwrites an account outside any transaction, before workers start.
+	 */
+	public void restore(int id, long balance, long numTransactions) {
+		balances.set(id, balance);
+		transactions.set(id, numTransactions);
+	}
+	
+	public long getCommits() {
+		return commits.sum();
+	}
+	
+	public long getAborts() {
+		return aborts.sum();
+	}
+	
+	/**
+	 * One thread's transaction, reused for every attempt: its read version,
+	 * the accounts it has read, and the values it has written.
+	 */
+	public class Transaction {
+		private long readVersion;
+		private int[] readIds         = new int[8];
+		private int numReads;
+		private int[] writeIds        = new int[8];
+		private long[] writeBalances  = new long[8];
+		private long[] writeTrans     = new long[8];
+		private int numWrites;
+		private int numLocked;
+		
+		private void begin() {
+			readVersion = clock.get();
+			numReads    = 0;
+			numWrites   = 0;
+			numLocked   = 0;
+		}
+		
+		/**
+		 * @return the account's balance as of this transaction
+		 */
+		public long readBalance(int id) {
+			int w = findWrite(id);
+			if (w >= 0) return writeBalances[w];
+			long pre   = locks.get(id);
+			long value = balances.get(id);
+			validateRead(id, pre);
+			return value;
+		}
+		
+		/**
+		 * @return the account's number of transactions as of this transaction
+		 */
+		public long readTransactions(int id) {
+			int w = findWrite(id);
+			if (w >= 0) return writeTrans[w];
+			long pre   = locks.get(id);
+			long value = transactions.get(id);
+			validateRead(id, pre);
+			return value;
+		}
+		
+		/**
+		 * Buffers a new balance and number of transactions for the account,
+		 * written at commit.
+		 */
+		public void write(int id, long balance, long numTransactions) {
+			int w = findWrite(id);
+			if (w < 0) {
+				if (numWrites == writeIds.length) growWrites();
+				w = numWrites++;
+				writeIds[w] = id;
+			}
+			writeBalances[w] = balance;
+			writeTrans[w]    = numTransactions;
+		}
+		
+		/**
+		 * Checks that a value read between two reads of its lock word, the
+		 * first returning pre, is consistent, and adds it to the read set.
+		 */
+		private void validateRead(int id, long pre) {
+			if ((pre & 1) != 0 || (pre >>> 1) > readVersion ||
+					locks.get(id) != pre) {
+				throw ABORT;
+			}
+			if (numReads == readIds.length) {
+				readIds = Arrays.copyOf(readIds, numReads * 2);
+			}
+			readIds[numReads++] = id;
+		}
+		
+		private int findWrite(int id) {
+			for (int i = 0; i < numWrites; i++) {
+				if (writeIds[i] == id) return i;
+			}
+			return -1;
+		}
+		
+		private void growWrites() {
+			int size = writeIds.length * 2;
+			writeIds      = Arrays.copyOf(writeIds, size);
+			writeBalances = Arrays.copyOf(writeBalances, size);
+			writeTrans    = Arrays.copyOf(writeTrans, size);
+		}
+		
+		/**
+		 * Runs the TL2 commit protocol.
+		 * @return whether the transaction committed
+		 */
+		private boolean commit() {
+			if (numWrites == 0) return true; // read-only, already consistent
+			
+			// Lock the write set, giving up on the first lock already held
+			for (numLocked = 0; numLocked < numWrites; numLocked++) {
+				int id = writeIds[numLocked];
+				long word = locks.get(id);
+				if ((word & 1) != 0 || !locks.compareAndSet(id, word, word | 1)) {
+					unlock(false, 0);
+					return false;
+				}
+			}
+			long writeVersion = clock.incrementAndGet();
+			
+			// Revalidate the read set, unless nothing committed since begin
+			if (writeVersion != readVersion + 1) {
+				for (int i = 0; i < numReads; i++) {
+					int id = readIds[i];
+					long word = locks.get(id);
+					if ((word >>> 1) > readVersion ||
+							((word & 1) != 0 && findWrite(id) < 0)) {
+						unlock(false, 0);
+						return false;
+					}
+				}
+			}
+			
+			for (int i = 0; i < numWrites; i++) {
+				balances.set(writeIds[i], writeBalances[i]);
+				transactions.set(writeIds[i], writeTrans[i]);
+			}
+			unlock(true, writeVersion);
+			return true;
+		}
+		
+		/**
+		 * Releases the numLocked locks taken by commit, stamping them with
+		 * the write version if committed or restoring them otherwise.
+		 */
+		private void unlock(boolean committed, long writeVersion) {
+			for (int i = 0; i < numLocked; i++) {
+				int id = writeIds[i];
+				if (committed) {
+					locks.set(id, writeVersion << 1);
+				} else {
+					locks.set(id, locks.get(id) & ~1L);
+				}
+			}
+			numLocked = 0;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package assign4;
+
+/**
+ * TransferEngine which applies every transfer as a transaction of an Stm:
+ * it reads the balances and transaction counts of the accounts involved,
+ * buffers their new values, and commits them together or retries. No
+ * worker ever blocks on another, and conflicting transfers are settled by
+ * the Stm's contention policy instead of lock ordering.
+ *
+ * Each thread reuses one TransferBlock, filled in with the transfer's
+ * arguments before every call, so a transfer allocates nothing.
+ */
+public class StmTransferEngine implements TransferEngine {
+	
+	private final Stm stm;
+	private final ThreadLocal<TransferBlock> blocks;
+	
+	/**
+	 * @param numAccounts number of accounts, each with INIT_BALANCE
+	 * @param policy how workers wait after an aborted transfer
+	 */
+	public StmTransferEngine(int numAccounts, Stm.ContentionPolicy policy) {
+		stm = new Stm(numAccounts, Bank.INIT_BALANCE, policy);
+		blocks = new ThreadLocal<TransferBlock>() {
+			@Override
+			protected TransferBlock initialValue() {
+				return new TransferBlock();
+			}
+		};
+	}
+	
+	/**
+	 * @return the Stm holding the accounts, e.g. to run other transactions
+	 * over them
+	 */
+	public Stm getStm() {
+		return stm;
+	}
+	
+	@Override
+	public void transfer(int from, int to, int amount) {
+		transferNet(from, to, amount, 1);
+	}
+	
+	@Override
+	public void transferNet(int from, int to, int amount, int count) {
+		TransferBlock block = blocks.get();
+		block.from   = from;
+		block.to     = to;
+		block.amount = amount;
+		block.count  = count;
+		stm.atomically(block);
+	}
+	
+	@Override
+	public void transferLegs(int from, int[] toAccounts, int[] amounts) {
+		TransferBlock block = blocks.get();
+		block.from       = from;
+		block.toAccounts = toAccounts;
+		block.amounts    = amounts;
+		try {
+			stm.atomically(block);
+		} finally {
+			block.toAccounts = null;
+			block.amounts    = null;
+		}
+	}
+	
+	/**
+	 * One transfer, or one multi-leg transaction if toAccounts is set.
+	 */
+	private static class TransferBlock implements Stm.Atomic {
+		int from, to, amount, count;
+		int[] toAccounts, amounts;
+		
+		@Override
+		public void run(Stm.Transaction tx) {
+			if (toAccounts == null) {
+				move(tx, from, -amount, count);
+				move(tx, to, amount, count);
+			} else {
+				move(tx, from, -MultiLegTransaction.total(amounts), amounts.length);
+				for (int i = 0; i < amounts.length; i++) {
+					move(tx, toAccounts[i], amounts[i], 1);
+				}
+			}
+		}
+		
+		private static void move(Stm.Transaction tx, int id, long delta,
+				int count) {
+			tx.write(id, tx.readBalance(id) + delta,
+					 tx.readTransactions(id) + count);
+		}
+	}
+	
+	/**
+	 * Prints the number of committed and aborted transactions to stderr.
+	 */
+	public void printStats() {
+		long commits = stm.getCommits();
+		long aborts  = stm.getAborts();
+		System.err.printf("stm: %d commits, %d aborts (%.4f per commit)%n",
+				commits, aborts, commits == 0 ? 0.0 : (double) aborts / commits);
+	}
+	
+	@Override
+	public void restore(int id, long balance, long transactions) {
+		stm.restore(id, balance, transactions);
+	}
+	
+	@Override
+	public int numAccounts() {
+		return stm.numAccounts();
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return stm.getBalance(id);
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return stm.getTransactions(id);
+	}
+}
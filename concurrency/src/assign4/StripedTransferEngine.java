@@ -0,0 +1,291 @@
+package assign4;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locking TransferEngine which splits hot accounts into striped
+ * sub-balances at runtime. Every account has a lock, taken lowest ID first
+ * as in LockingTransferEngine, and a count of the times a worker had to
+ * wait for it. A monitor thread samples those counts every SAMPLE_MS: an
+ * account which made workers wait at least SPLIT_WAITS times in one sample
+ * becomes hot.
+ *
+ * Deposits into a hot account no longer take its lock. In the style of
+ * LongAdder, they add to one of numStripes padded cells of an atomic array,
+ * picked by the depositing thread, so concurrent deposits rarely share a
+ * cache line. Withdrawals still lock the account and update its base
+ * balance, and reads aggregate the base balance and every stripe. Once a
+ * hot account receives fewer than SPLIT_WAITS deposits in a sample it is
+ * merged back: deposits take its lock again and the stripes are drained
+ * into the base balance with getAndSet, so a deposit racing with the merge
+ * is either drained or left in its stripe, where reads still see it.
+ *
+ * A hot account's balance is only consistent once all workers are done:
+ * a reader can observe a deposit before the matching withdrawal.
+ */
+public class StripedTransferEngine implements TransferEngine {
+	
+	static final long SAMPLE_MS   = 10;
+	static final int SPLIT_WAITS  = 64;
+	static final int STRIPE_SLOTS = 8; // longs per stripe, one cache line
+	
+	/**
+	 * Base state of one account, guarded by its lock, plus its stripes.
+	 */
+	private static class StripedAccount {
+		final ReentrantLock lock = new ReentrantLock();
+		long balance;
+		long transactions;
+		volatile int lockWaits;        // only incremented under the lock
+		volatile boolean hot;
+		volatile AtomicLongArray stripes; // created on the first split, kept
+		int lastWaits;                  // monitor thread only
+		long lastDeposits;              // monitor thread only
+	}
+	
+	private final StripedAccount[] accounts;
+	private final int numStripes;
+	private volatile boolean running;
+	private Thread monitor;
+	private long splits, merges;
+	
+	/**
+	 * @param numAccounts number of accounts, each with INIT_BALANCE
+	 * @param numStripes number of sub-balances per hot account, rounded up
+	 * to a power of two
+	 */
+	public StripedTransferEngine(int numAccounts, int numStripes) {
+		accounts = new StripedAccount[numAccounts];
+		for (int i = 0; i < numAccounts; i++) {
+			accounts[i] = new StripedAccount();
+			accounts[i].balance = Bank.INIT_BALANCE;
+		}
+		int stripes = 1;
+		while (stripes < numStripes) stripes <<= 1;
+		this.numStripes = stripes;
+	}
+	
+	/**
+	 * Starts the daemon thread which splits and merges hot accounts.
+	 */
+	public void start() {
+		running = true;
+		monitor = new HotAccountMonitor();
+		monitor.start();
+	}
+	
+	/**
+	 * Stops the monitor thread, leaving hot accounts split.
+	 */
+	public void shutdown() throws InterruptedException {
+		running = false;
+		monitor.interrupt();
+		monitor.join();
+	}
+	
+	@Override
+	public void transfer(int from, int to, int amount) {
+		transferNet(from, to, amount, 1);
+	}
+	
+	@Override
+	public void transferNet(int from, int to, int amount, int count) {
+		StripedAccount source = accounts[from];
+		StripedAccount target = accounts[to];
+		
+		if (from != to && target.hot) {
+			// Only the withdrawal needs a lock, the deposit goes to a stripe
+			lock(source);
+			try {
+				source.balance      -= amount;
+				source.transactions += count;
+			} finally {
+				source.lock.unlock();
+			}
+			deposit(target, amount, count);
+			return;
+		}
+		
+		// Determine order of locks, lowest ID first for consistency
+		StripedAccount first  = (from <= to) ? source : target;
+		StripedAccount second = (from <= to) ? target : source;
+		lock(first);
+		try {
+			if (second != first) lock(second);
+			try {
+				source.balance      -= amount;
+				source.transactions += count;
+				target.balance      += amount;
+				target.transactions += count;
+			} finally {
+				if (second != first) second.lock.unlock();
+			}
+		} finally {
+			first.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Locks every account the transaction touches in ascending order. Hot 
+	 * accounts are locked like any other, so their deposits go to the base
+	 * balance.
+	 */
+	@Override
+	public void transferLegs(int from, int[] toAccounts, int[] amounts) {
+		int[] ids = new int[toAccounts.length + 1];
+		int numIds = MultiLegTransaction.lockOrder(from, toAccounts, ids);
+		int total  = MultiLegTransaction.total(amounts);
+		int locked = 0;
+		try {
+			while (locked < numIds) {
+				lock(accounts[ ids[locked] ]);
+				locked++;
+			}
+			accounts[from].balance      -= total;
+			accounts[from].transactions += amounts.length;
+			for (int i = 0; i < amounts.length; i++) {
+				accounts[ toAccounts[i] ].balance += amounts[i];
+				accounts[ toAccounts[i] ].transactions++;
+			}
+		} finally {
+			while (locked > 0) {
+				accounts[ ids[--locked] ].lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Locks the account, counting the acquisition as a wait if the lock was
+	 * held by another worker.
+	 */
+	private static void lock(StripedAccount account) {
+		if (!account.lock.tryLock()) {
+			account.lock.lock();
+			account.lockWaits++;
+		}
+	}
+	
+	/**
+	 * Adds a deposit to the calling thread's stripe of a hot account.
+	 */
+	private void deposit(StripedAccount account, int amount, int count) {
+		AtomicLongArray stripes = account.stripes;
+		int slot = (int) (Thread.currentThread().getId() & (numStripes - 1))
+				   * STRIPE_SLOTS;
+		stripes.getAndAdd(slot, amount);
+		stripes.getAndAdd(slot + 1, count);
+	}
+	
+	@Override
+	public void restore(int id, long balance, long transactions) {
+		accounts[id].balance      = balance;
+		accounts[id].transactions = transactions;
+	}
+	
+	@Override
+	public int numAccounts() {
+		return accounts.length;
+	}
+	
+	@Override
+	public long getBalance(int id) {
+		return accounts[id].balance + sumStripes(accounts[id], 0);
+	}
+	
+	@Override
+	public long getTransactions(int id) {
+		return accounts[id].transactions + sumStripes(accounts[id], 1);
+	}
+	
+	/**
+	 * @param offset 0 for balances, 1 for transaction counts
+	 * @return the sum of that value over every stripe of the account
+	 */
+	private long sumStripes(StripedAccount account, int offset) {
+		AtomicLongArray stripes = account.stripes;
+		long sum = 0;
+		if (stripes != null) {
+			for (int i = offset; i < stripes.length(); i += STRIPE_SLOTS) {
+				sum += stripes.get(i);
+			}
+		}
+		return sum;
+	}
+	
+	/**
+	 * Prints the number of splits and merges, and the accounts still hot,
+	 * to stderr.
+	 */
+	public void printStats() {
+		int hot = 0;
+		for (StripedAccount account : accounts) {
+			if (account.hot) hot++;
+		}
+		System.err.printf("striped: %d splits, %d merges, %d accounts hot " +
+				"with %d stripes%n", splits, merges, hot, numStripes);
+	}
+	
+	/**
+	 * Daemon thread which samples every account each SAMPLE_MS, splitting
+	 * those whose lock made workers wait and merging hot ones gone cold.
+	 */
+	private class HotAccountMonitor extends Thread {
+		
+		public HotAccountMonitor() {
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					TimeUnit.MILLISECONDS.sleep(SAMPLE_MS);
+					for (StripedAccount account : accounts) {
+						sample(account);
+					}
+				}
+			} catch (InterruptedException e) {
+				return; // shut down
+			}
+		}
+		
+		private void sample(StripedAccount account) {
+			int waits = account.lockWaits;
+			long deposits = sumStripes(account, 1);
+			
+			if (!account.hot && waits - account.lastWaits >= SPLIT_WAITS) {
+				if (account.stripes == null) {
+					account.stripes = new AtomicLongArray(numStripes * STRIPE_SLOTS);
+				}
+				account.hot = true;
+				splits++;
+			} else if (account.hot &&
+					   deposits - account.lastDeposits < SPLIT_WAITS) {
+				account.hot = false;
+				drain(account);
+				deposits = sumStripes(account, 1);
+				merges++;
+			}
+			account.lastWaits    = waits;
+			account.lastDeposits = deposits;
+		}
+		
+		/**
+		 * Moves everything in the account's stripes into its base balance.
+		 */
+		private void drain(StripedAccount account) {
+			AtomicLongArray stripes = account.stripes;
+			lock(account);
+			try {
+				for (int i = 0; i < stripes.length(); i += STRIPE_SLOTS) {
+					account.balance      += stripes.getAndSet(i, 0);
+					account.transactions += stripes.getAndSet(i + 1, 0);
+				}
+			} finally {
+				account.lock.unlock();
+			}
+		}
+	}
+}
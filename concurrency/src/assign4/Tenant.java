@@ -0,0 +1,186 @@
+package assign4;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * One independent ledger processed by a TenantPool: a transaction file,
+ * the TransferEngine holding the tenant's own accounts, and the file its
+ * account summary is written to once every transaction has been applied.
+ *
+ * Workers take turns on a tenant one slice at a time. readSlice() reads the
+ * next lines under the tenant's monitor, so slices are read in file order,
+ * but slices are applied concurrently and outside the monitor; the engine
+ * must therefore be thread-safe. The tenant counts the slices being applied
+ * so that exactly one worker, the last to release a slice after the input
+ * ran out, finishes it. The file is only opened on the first slice and is
+ * closed as soon as it is exhausted.
+ */
+public class Tenant {
+	
+	private final String name;
+	private final File input;
+	private final File output;
+	private final TransferEngine engine;
+	private BufferedReader reader;
+	private int active;        // slices read but not yet released
+	private boolean exhausted; // no more slices to read
+	private boolean finished;
+	private Exception failure;
+	private long count;
+	private long startNanos, endNanos;
+	
+	/**
+	 * @param input the transaction file, one "from to amount" per line
+	 * @param output file the account summary is written to
+	 * @param engine engine holding this tenant's accounts
+	 */
+	public Tenant(File input, File output, TransferEngine engine) {
+		this.name   = input.getName();
+		this.input  = input;
+		this.output = output;
+		this.engine = engine;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public TransferEngine getEngine() {
+		return engine;
+	}
+	
+	/**
+	 * Reads up to slice.capacity() transactions into the cleared slice. A
+	 * worker which read any must call release() once it has applied them;
+	 * one which read none must call release() too, in case it was the one
+	 * to find the end of the input.
+	 * @return the number of transactions read; fewer than the capacity
+	 * once the input is exhausted
+	 */
+	public synchronized int readSlice(TransactionBatch slice) {
+		slice.clear();
+		if (exhausted) return 0;
+		try {
+			if (reader == null) {
+				startNanos = System.nanoTime();
+				reader = new BufferedReader( new FileReader(input) );
+			}
+			String line;
+			while (slice.size() < slice.capacity() &&
+				   (line = reader.readLine()) != null) {
+				String[] parts = line.split("\\s"); // from, to, amount
+				if (parts.length != 3) {
+					throw new RuntimeException("3 values expected for all " +
+							"tenant input lines, got '" + line + "'");
+				}
+				slice.add(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+						  Integer.parseInt(parts[2]));
+			}
+			if (slice.size() < slice.capacity()) close();
+		} catch (Exception e) {
+			slice.clear();
+			fail(e);
+		}
+		count += slice.size();
+		if (slice.size() > 0) active++;
+		return slice.size();
+	}
+	
+	/**
+	 * Records why the tenant failed and stops reading it, leaving the other
+	 * tenants running. Slices already read are still released as usual.
+	 */
+	public synchronized void fail(Exception e) {
+		if (failure == null) failure = e;
+		close();
+	}
+	
+	/**
+	 * Marks the input exhausted and closes the file.
+	 */
+	private void close() {
+		exhausted = true;
+		if (reader != null) {
+			BufferedReader closing = reader;
+			reader = null;
+			try {
+				closing.close();
+			} catch (IOException e) { e.printStackTrace(); }
+		}
+	}
+	
+	/**
+	 * @return whether more slices may be read
+	 */
+	public synchronized boolean hasMore() {
+		return !exhausted;
+	}
+	
+	/**
+	 * Releases a slice returned by readSlice().
+	 * @param applied whether the slice held any transactions
+	 * @return true for exactly one caller: the one which must finish() the
+	 * tenant, as the input is exhausted and every slice applied
+	 */
+	public synchronized boolean release(boolean applied) {
+		if (applied) active--;
+		if (exhausted && active == 0 && !finished) {
+			finished = true;
+			endNanos = System.nanoTime();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Writes the account summary to the output file, or reports why the
+	 * tenant failed on stderr.
+	 */
+	public void finish() throws IOException {
+		if (failed()) {
+			System.err.println("tenant " + name + " failed: " + getFailure());
+			return;
+		}
+		OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(output) );
+		try {
+			Bank.writeAccounts(engine, out);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * @return whether reading or applying the tenant's input failed
+	 */
+	public synchronized boolean failed() {
+		return failure != null;
+	}
+	
+	/**
+	 * @return the first exception the tenant failed with, or null
+	 */
+	public synchronized Exception getFailure() {
+		return failure;
+	}
+	
+	/**
+	 * @return the number of transactions read
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+	
+	/**
+	 * @return the time from the first slice to the last release, in ns
+	 */
+	public synchronized long getElapsedNanos() {
+		return endNanos - startNanos;
+	}
+}
@@ -0,0 +1,132 @@
+package assign4;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs many independent Tenants on one shared pool of worker threads, so
+ * a batch of ledgers pays for JVM startup and JIT warmup once rather than
+ * once per ledger.
+ *
+ * Tenants are scheduled round-robin through a run queue. A worker takes
+ * the tenant at the head, reads its next slice of up to quantum
+ * transactions, puts it back at the tail if it has more, and only then
+ * applies the slice. Every tenant with input left therefore gets one slice
+ * per turn however large its file, and a tenant with a long file can still
+ * have several slices applied at once while the other tenants run out.
+ * The worker which applies a tenant's last slice writes its output.
+ */
+public class TenantPool {
+	
+	static final int DEFAULT_QUANTUM = 1024;
+	
+	// Put on the run queue once per worker after every tenant finished
+	private static final Tenant POISON = new Tenant(new File(""),
+			null, null);
+	
+	private final List<Tenant> tenants;
+	private final int numWorkers;
+	private final int quantum;
+	private final BlockingQueue<Tenant> runQueue;
+	private final CountDownLatch remaining;
+	private long startNanos, endNanos;
+	
+	/**
+	 * @param tenants the tenants to run
+	 * @param numWorkers number of shared worker threads
+	 * @param quantum transactions a worker takes from a tenant per turn
+	 */
+	public TenantPool(List<Tenant> tenants, int numWorkers, int quantum) {
+		this.tenants    = tenants;
+		this.numWorkers = numWorkers;
+		this.quantum    = quantum;
+		runQueue  = new LinkedBlockingQueue<Tenant>(tenants);
+		remaining = new CountDownLatch( tenants.size() );
+	}
+	
+	/**
+	 * Runs every tenant to completion and stops the workers.
+	 */
+	public void run() throws InterruptedException {
+		startNanos = System.nanoTime();
+		TenantWorker[] workers = new TenantWorker[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new TenantWorker();
+			workers[i].start();
+		}
+		remaining.await();
+		endNanos = System.nanoTime();
+		
+		for (int i = 0; i < numWorkers; i++) {
+			runQueue.put(POISON);
+		}
+		for (TenantWorker worker : workers) {
+			worker.join();
+		}
+	}
+	
+	/**
+	 * Prints the number of tenants and transfers, the overall throughput,
+	 * and the fastest and slowest tenant, to stderr.
+	 */
+	public void printStats() {
+		long transfers = 0;
+		int failed = 0;
+		Tenant fastest = null, slowest = null;
+		for (Tenant tenant : tenants) {
+			transfers += tenant.getCount();
+			if (tenant.failed()) failed++;
+			if (fastest == null ||
+				tenant.getElapsedNanos() < fastest.getElapsedNanos()) {
+				fastest = tenant;
+			}
+			if (slowest == null ||
+				tenant.getElapsedNanos() > slowest.getElapsedNanos()) {
+				slowest = tenant;
+			}
+		}
+		double seconds = (endNanos - startNanos) / 1e9;
+		System.err.printf("tenants: %d tenants (%d failed), %d transfers in " +
+				"%.3f s (%.0f/s) on %d workers, quantum %d%n", tenants.size(),
+				failed, transfers, seconds, transfers / seconds, numWorkers,
+				quantum);
+		if (fastest != null) {
+			System.err.printf("tenants: fastest %s %.3f s, slowest %s %.3f s%n",
+					fastest.getName(), fastest.getElapsedNanos() / 1e9,
+					slowest.getName(), slowest.getElapsedNanos() / 1e9);
+		}
+	}
+	
+	/**
+	 * Worker which takes turns on tenants from the run queue until it takes
+	 * POISON. Each worker owns one slice, reused for every turn.
+	 */
+	private class TenantWorker extends Thread {
+		
+		private final TransactionBatch slice = new TransactionBatch(quantum);
+		
+		@Override
+		public void run() {
+			try {
+				Tenant tenant;
+				while ((tenant = runQueue.take()) != POISON) {
+					int read = tenant.readSlice(slice);
+					if (tenant.hasMore()) runQueue.put(tenant); // next turn
+					try {
+						slice.applyTo( tenant.getEngine() );
+					} catch (Exception e) { tenant.fail(e); }
+					
+					if (tenant.release(read > 0)) {
+						try {
+							tenant.finish();
+						} catch (Exception e) { e.printStackTrace(); }
+						remaining.countDown();
+					}
+				}
+			} catch (Exception e) { e.printStackTrace(); }
+		}
+	}
+}
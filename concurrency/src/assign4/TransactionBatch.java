@@ -0,0 +1,59 @@
+package assign4;
+
+/**
+ * Fixed-size batch of transactions stored as parallel primitive arrays of
+ * from account, to account and amount. Batches are filled by a single 
+ * producer and then handed to a worker as a whole, so the queue's lock and
+ * signalling cost is paid once per batch rather than once per transaction.
+ */
+public class TransactionBatch {
+
+	final int[] fromAccounts;
+	final int[] toAccounts;
+	final int[] amounts;
+	private int size;
+	
+	public TransactionBatch(int capacity) {
+		fromAccounts = new int[capacity];
+		toAccounts   = new int[capacity];
+		amounts      = new int[capacity];
+		size         = 0;
+	}
+	
+	/**
+	 * Appends a transaction to the batch.
+	 * @return whether the batch is now full
+	 */
+	public boolean add(int from, int to, int amount) {
+		fromAccounts[size] = from;
+		toAccounts[size]   = to;
+		amounts[size]      = amount;
+		size++;
+		return size == amounts.length;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int capacity() {
+		return amounts.length;
+	}
+	
+	/**
+	 * Empties the batch so it can be filled again.
+	 */
+	public void clear() {
+		size = 0;
+	}
+	
+	/**
+	 * Carries out every transaction in the batch, in order, with the given 
+	 * TransferEngine.
+	 */
+	public void applyTo(TransferEngine engine) {
+		for (int i = 0; i < size; i++) {
+			engine.transfer(fromAccounts[i], toAccounts[i], amounts[i]);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package assign4;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Converts a text transaction file into the BinaryTransactionFile format, 
+ * so files which are replayed repeatedly only have to be parsed once. The 
+ * text is memory-mapped and parsed by a MappedTransactionParser which feeds
+ * a BinaryTransactionFile.Writer directly, streaming in both directions, so
+ * files of any size can be converted. If a line fails to parse, no binary
+ * file is left behind.
+ * 
+ * Usage: java assign4.TransactionConverter transactions.txt transactions.bin
+ */
+public class TransactionConverter {
+
+	/**
+	 * Converts the text file inFile into the binary file outFile, deleting 
+	 * outFile again if the conversion fails.
+	 * @return the number of transactions converted
+	 */
+	public static long convert(String inFile, String outFile) throws Exception {
+		FileChannel channel = FileChannel.open( Paths.get(inFile), 
+												StandardOpenOption.READ );
+		BinaryTransactionFile.Writer writer = 
+				new BinaryTransactionFile.Writer(outFile);
+		boolean converted = false;
+		try {
+			new MappedTransactionParser(writer).parse(channel, 0, channel.size());
+			converted = true;
+		} finally {
+			channel.close();
+			if (converted) {
+				writer.close();
+			} else {
+				writer.abort();
+				Files.deleteIfExists( Paths.get(outFile) );
+			}
+		}
+		return writer.getCount();
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			throw new RuntimeException("Text and binary file names expected");
+		}
+		long start = System.nanoTime();
+		long count = convert(args[0], args[1]);
+		System.err.printf("converted %d transactions in %.3f s%n", count,
+						  (System.nanoTime() - start) / 1e9);
+	}
+}
@@ -0,0 +1,33 @@
+package assign4;
+
+/**
+ * Alternative to the Bank's shared queue and TransferEngine: an executor 
+ * owns both the account state and its worker threads, and receives 
+ * transactions through the sinks it hands out.
+ */
+public interface TransactionExecutor extends AccountView {
+
+	/**
+	 * Starts the executor's worker threads.
+	 */
+	public void start();
+	
+	/**
+	 * Returns a sink feeding this executor. Each producer thread needs its 
+	 * own sink.
+	 */
+	public TransactionSink newSink();
+	
+	/**
+	 * Signals that every producer has flushed its sink. Workers finish the
+	 * remaining work, after which the executor's latch reaches zero. May 
+	 * block until then.
+	 */
+	public void finish() throws InterruptedException;
+	
+	/**
+	 * Prints a one line summary of the run to stderr. Only valid once the 
+	 * workers are done.
+	 */
+	public void printStats();
+}
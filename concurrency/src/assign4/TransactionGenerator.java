@@ -0,0 +1,305 @@
+package assign4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic transaction files with skewed account access, for 
+ * reproducing hot-account contention in Bank. Files are streamed straight
+ * to disk, formatting numbers into a byte buffer without creating Strings,
+ * so sizes are limited only by the disk. Output is either the usual text
+ * format or the BinaryTransactionFile format.
+ * 
+ * Options, given as name=value after the file name and transaction count:
+ * 
+ *   accounts  number of accounts (20)
+ *   dist      uniform, hotspot or zipf account access (uniform)
+ *   hot       hotspot: fraction of accounts which are hot (0.1)
+ *   hotfrac   hotspot: fraction of accesses going to hot accounts (0.9)
+ *   zipf      zipf: exponent, larger is more skewed (1.0)
+ *   amounts   uniform, exp or fixed amount distribution (uniform)
+ *   max       largest uniform amount, mean exp amount, or fixed amount (100)
+ *   format    text or binary (text)
+ *   seed      random seed (42)
+ * 
+ * Hot and high ranked zipf accounts are the lowest account IDs.
+ * 
+ * Usage: java assign4.TransactionGenerator hot.txt 100000000 dist=zipf zipf=1.2
+ */
+public class TransactionGenerator {
+
+	private static final int BUFFER_BYTES = 1 << 20;
+	private static final int MAX_LINE     = 3 * 12; // 3 ints with separators
+	
+	/**
+	 * Picks account IDs from some distribution.
+	 */
+	private interface AccountPicker {
+		public int next(SplittableRandom random);
+	}
+	
+	/**
+	 * Accesses go to the first hotAccounts accounts with probability 
+	 * hotFraction, and are otherwise uniform over the rest.
+	 */
+	private static class HotspotPicker implements AccountPicker {
+		private final int numAccounts, hotAccounts;
+		private final double hotFraction;
+		
+		public HotspotPicker(int numAccounts, double hot, double hotFraction) {
+			this.numAccounts = numAccounts;
+			this.hotFraction = hotFraction;
+			hotAccounts = Math.max(1, Math.min(numAccounts, 
+											   (int) (numAccounts * hot)));
+		}
+		
+		public int next(SplittableRandom random) {
+			if (hotAccounts == numAccounts || random.nextDouble() < hotFraction) {
+				return random.nextInt(hotAccounts);
+			}
+			return hotAccounts + random.nextInt(numAccounts - hotAccounts);
+		}
+	}
+	
+	/**
+	 * Zipf distributed accesses, where account k - 1 is picked with 
+	 * probability proportional to 1 / k^exponent. Uses Hormann and 
+	 * Derflinger's rejection-inversion method, which needs no tables and
+	 * so works for any number of accounts.
+	 */
+	private static class ZipfPicker implements AccountPicker {
+		private final int numAccounts;
+		private final double exponent;
+		private final double hIntegralX1, hIntegralN, s;
+		
+		public ZipfPicker(int numAccounts, double exponent) {
+			if (exponent <= 0) {
+				throw new RuntimeException("zipf exponent must be positive");
+			}
+			this.numAccounts = numAccounts;
+			this.exponent    = exponent;
+			hIntegralX1 = hIntegral(1.5) - 1.0;
+			hIntegralN  = hIntegral(numAccounts + 0.5);
+			s = 2.0 - hIntegralInverse( hIntegral(2.5) - h(2.0) );
+		}
+		
+		public int next(SplittableRandom random) {
+			while (true) {
+				double u = hIntegralN + 
+						random.nextDouble() * (hIntegralX1 - hIntegralN);
+				double x = hIntegralInverse(u);
+				int k = (int) (x + 0.5);
+				if (k < 1) {
+					k = 1;
+				} else if (k > numAccounts) {
+					k = numAccounts;
+				}
+				if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+					return k - 1;
+				}
+			}
+		}
+		
+		private double h(double x) {
+			return Math.exp(-exponent * Math.log(x));
+		}
+		
+		private double hIntegral(double x) {
+			double logX = Math.log(x);
+			return helper2((1.0 - exponent) * logX) * logX;
+		}
+		
+		private double hIntegralInverse(double x) {
+			double t = x * (1.0 - exponent);
+			if (t < -1.0) t = -1.0; // guard against rounding
+			return Math.exp(helper1(t) * x);
+		}
+		
+		// log(1 + x) / x, accurate near 0
+		private static double helper1(double x) {
+			if (Math.abs(x) > 1e-8) return Math.log1p(x) / x;
+			return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+		}
+		
+		// (exp(x) - 1) / x, accurate near 0
+		private static double helper2(double x) {
+			if (Math.abs(x) > 1e-8) return Math.expm1(x) / x;
+			return 1.0 + x * 0.5 * (1.0 + x * (1.0 / 3.0) * (1.0 + 0.25 * x));
+		}
+	}
+	
+	/**
+	 * Returns the account picker described by the options.
+	 */
+	private static AccountPicker newPicker(HashMap<String, String> opts) {
+		final int numAccounts = Integer.parseInt( opts.get("accounts") );
+		String dist = opts.get("dist");
+		
+		if (dist.equals("uniform")) {
+			return new AccountPicker() {
+				public int next(SplittableRandom random) {
+					return random.nextInt(numAccounts);
+				}
+			};
+		} else if (dist.equals("hotspot")) {
+			return new HotspotPicker(numAccounts, 
+					Double.parseDouble( opts.get("hot") ),
+					Double.parseDouble( opts.get("hotfrac") ));
+		} else if (dist.equals("zipf")) {
+			return new ZipfPicker(numAccounts, 
+								  Double.parseDouble( opts.get("zipf") ));
+		}
+		throw new RuntimeException("Unknown distribution '" + dist + "'");
+	}
+	
+	/**
+	 * Returns the next amount from the distribution named by amounts: 
+	 * uniform in [1, max], exponential with mean max (at least 1), or max.
+	 */
+	private static int nextAmount(SplittableRandom random, String amounts, 
+			int max) {
+		if (amounts.equals("uniform")) {
+			return 1 + random.nextInt(max);
+		} else if (amounts.equals("exp")) {
+			return 1 + (int) (-Math.log(1.0 - random.nextDouble()) * (max - 1));
+		} else if (amounts.equals("fixed")) {
+			return max;
+		}
+		throw new RuntimeException("Unknown amount distribution '" + amounts + "'");
+	}
+	
+	/**
+	 * Generates count transactions into sink.
+	 */
+	private static void generate(long count, HashMap<String, String> opts, 
+			TransactionSink sink) throws InterruptedException {
+		AccountPicker picker = newPicker(opts);
+		SplittableRandom random = 
+				new SplittableRandom( Long.parseLong( opts.get("seed") ) );
+		String amounts = opts.get("amounts");
+		int max = Integer.parseInt( opts.get("max") );
+		if (max < 1) throw new RuntimeException("max must be at least 1");
+		nextAmount(random, amounts, max); // validate before looping
+		
+		for (long i = 0; i < count; i++) {
+			sink.accept(picker.next(random), picker.next(random), 
+						nextAmount(random, amounts, max));
+		}
+		sink.flush();
+	}
+	
+	/**
+	 * Sink which writes "from to amount" lines through a direct buffer.
+	 */
+	private static class TextWriter implements TransactionSink {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		
+		public TextWriter(String fileName) throws IOException {
+			channel = FileChannel.open( Paths.get(fileName), 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+					StandardOpenOption.TRUNCATE_EXISTING );
+			buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		}
+		
+		public void accept(int from, int to, int amount) {
+			if (buffer.remaining() < MAX_LINE) flush();
+			putInt(from);
+			buffer.put((byte) ' ');
+			putInt(to);
+			buffer.put((byte) ' ');
+			putInt(amount);
+			buffer.put((byte) '\n');
+		}
+		
+		/**
+		 * Writes the ASCII digits of value, without creating a String.
+		 */
+		private void putInt(int value) {
+			long v = value;
+			if (v < 0) {
+				buffer.put((byte) '-');
+				v = -v;
+			}
+			long div = 1;
+			while (div * 10 <= v) div *= 10;
+			for (; div > 0; div /= 10) {
+				buffer.put((byte) ('0' + (v / div) % 10));
+			}
+		}
+		
+		public void flush() {
+			buffer.flip();
+			try {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			buffer.clear();
+		}
+		
+		public void close() throws IOException {
+			flush();
+			channel.close();
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			throw new RuntimeException("File name and transaction count expected");
+		}
+		String fileName = args[0];
+		long count = Long.parseLong(args[1]);
+		
+		HashMap<String, String> opts = new HashMap<String, String>();
+		opts.put("accounts", "20");
+		opts.put("dist", "uniform");
+		opts.put("hot", "0.1");
+		opts.put("hotfrac", "0.9");
+		opts.put("zipf", "1.0");
+		opts.put("amounts", "uniform");
+		opts.put("max", "100");
+		opts.put("format", "text");
+		opts.put("seed", "42");
+		for (int i = 2; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq < 0 || !opts.containsKey( args[i].substring(0, eq) )) {
+				throw new RuntimeException("Unknown option '" + args[i] + "'");
+			}
+			opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		
+		long start = System.nanoTime();
+		if (opts.get("format").equals("text")) {
+			TextWriter writer = new TextWriter(fileName);
+			try {
+				generate(count, opts, writer);
+			} finally {
+				writer.close();
+			}
+		} else if (opts.get("format").equals("binary")) {
+			BinaryTransactionFile.Writer writer = 
+					new BinaryTransactionFile.Writer(fileName);
+			try {
+				generate(count, opts, writer);
+			} finally {
+				writer.close();
+			}
+		} else {
+			throw new RuntimeException("Unknown format '" + opts.get("format") + "'");
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long bytes = Files.size( Paths.get(fileName) );
+		System.err.printf("wrote %d transactions (%.1f MB) in %.3f s: %.1f MB/s%n",
+				count, bytes / 1e6, seconds, bytes / 1e6 / seconds);
+	}
+}
@@ -0,0 +1,181 @@
+package assign4;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer, multi-consumer queue of transactions which never
+ * allocates after construction. Transactions live in preallocated slots of
+ * three primitive arrays (from, to, amount), and each slot has a sequence
+ * number saying whose turn it is, as in Dmitry Vyukov's bounded MPMC queue:
+ * 
+ *   - a producer claims the slot at the tail with a CAS, fills it, and 
+ *     publishes it by setting its sequence to position + 1
+ *   - a consumer acquires the published slot at the head with a CAS, reads
+ *     it, and releases it back to producers by setting its sequence to 
+ *     position + capacity, the position the slot is next filled for
+ * 
+ * The volatile sequence writes and reads order the plain array accesses. 
+ * Producers wait while the ring is full and consumers while it is empty,
+ * spinning briefly, then yielding, then parking, so waiting never creates
+ * garbage either.
+ */
+public class TransactionRing {
+
+	private static final int HEAD       = 0;  // cursor indices, a few 
+	private static final int TAIL       = 16; // cache lines apart
+	private static final int SPIN_TRIES  = 64;
+	private static final int YIELD_TRIES = 128;
+	private static final long PARK_NANOS = 20000;
+	
+	private final int capacity;
+	private final int mask;
+	private final int[] fromAccounts;
+	private final int[] toAccounts;
+	private final int[] amounts;
+	private final AtomicLongArray sequences;
+	private final AtomicLongArray cursors;
+	
+	/**
+	 * @param minCapacity number of slots, rounded up to a power of two
+	 */
+	public TransactionRing(int minCapacity) {
+		int size = 1;
+		while (size < minCapacity) size <<= 1;
+		capacity     = size;
+		mask         = size - 1;
+		fromAccounts = new int[size];
+		toAccounts   = new int[size];
+		amounts      = new int[size];
+		sequences    = new AtomicLongArray(size);
+		cursors      = new AtomicLongArray(TAIL + 16);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+	
+	/**
+	 * Claims, fills and publishes the next slot, waiting while the ring is
+	 * full.
+	 */
+	public void put(int from, int to, int amount) {
+		publish(claim(), from, to, amount);
+	}
+	
+	/**
+	 * Claims, fills and publishes the next slot if there is one free.
+	 * @return false, without waiting, if the ring is full
+	 */
+	public boolean tryPut(int from, int to, int amount) {
+		while (true) {
+			long pos = cursors.get(TAIL);
+			long seq = sequences.get((int) pos & mask);
+			if (seq == pos) {
+				if (cursors.compareAndSet(TAIL, pos, pos + 1)) {
+					publish(pos, from, to, amount);
+					return true;
+				}
+			} else if (seq < pos) {
+				return false; // full
+			}
+		}
+	}
+	
+	private void publish(long pos, int from, int to, int amount) {
+		int slot = (int) pos & mask;
+		fromAccounts[slot] = from;
+		toAccounts[slot]   = to;
+		amounts[slot]      = amount;
+		sequences.set(slot, pos + 1);
+	}
+	
+	/**
+	 * @return the position of the next free slot, now owned by the caller
+	 */
+	private long claim() {
+		int tries = 0;
+		while (true) {
+			long pos = cursors.get(TAIL);
+			long seq = sequences.get((int) pos & mask);
+			if (seq == pos) {
+				if (cursors.compareAndSet(TAIL, pos, pos + 1)) return pos;
+			} else if (seq < pos) {
+				tries = backoff(tries); // full
+			}
+		}
+	}
+	
+	/**
+	 * Acquires the next published slot, waiting while the ring is empty. 
+	 * The caller reads it with getFrom, getTo and getAmount, then must hand
+	 * it back with release.
+	 * @return the position of the acquired slot
+	 */
+	public long acquire() {
+		int tries = 0;
+		while (true) {
+			long pos = cursors.get(HEAD);
+			long seq = sequences.get((int) pos & mask);
+			if (seq == pos + 1) {
+				if (cursors.compareAndSet(HEAD, pos, pos + 1)) return pos;
+			} else if (seq < pos + 1) {
+				tries = backoff(tries); // empty
+			}
+		}
+	}
+	
+	/**
+	 * Acquires the next published slot if there is one, like acquire.
+	 * @return the position of the acquired slot, or -1, without waiting, if
+	 * the ring is empty
+	 */
+	public long tryAcquire() {
+		while (true) {
+			long pos = cursors.get(HEAD);
+			long seq = sequences.get((int) pos & mask);
+			if (seq == pos + 1) {
+				if (cursors.compareAndSet(HEAD, pos, pos + 1)) return pos;
+			} else if (seq < pos + 1) {
+				return -1; // empty
+			}
+		}
+	}
+	
+	public int getFrom(long pos) {
+		return fromAccounts[(int) pos & mask];
+	}
+	
+	public int getTo(long pos) {
+		return toAccounts[(int) pos & mask];
+	}
+	
+	public int getAmount(long pos) {
+		return amounts[(int) pos & mask];
+	}
+	
+	/**
+	 * Hands an acquired slot back to the producers.
+	 */
+	public void release(long pos) {
+		sequences.set((int) pos & mask, pos + capacity);
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Waits a little longer each time a caller finds the ring full or empty.
+	 * @return the updated number of tries
+	 */
+	private static int backoff(int tries) {
+		if (tries < SPIN_TRIES) {
+			Thread.onSpinWait();
+		} else if (tries < SPIN_TRIES + YIELD_TRIES) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return tries + 1;
+	}
+}
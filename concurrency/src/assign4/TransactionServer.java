@@ -0,0 +1,336 @@
+package assign4;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Non-blocking loopback front-end which lets other local processes submit
+ * transfers to a running Bank. One thread multiplexes every connection
+ * with a Selector, decodes requests straight from each connection's read
+ * buffer into a bounded TransactionRing, and acknowledges them in batches.
+ * A feeder thread drains the ring into a TransactionSink, so the selector
+ * never blocks when the sink does.
+ *
+ * The protocol is pipelined and binary, in BinaryTransactionFile's byte
+ * order:
+ *
+ *   request: from account (int), to account (int), amount (int), the same
+ *            RECORD_BYTES record as in a binary transaction file
+ *   ack:     number of requests accepted on the connection so far (long)
+ *
+ * A client may send any number of requests without waiting. After each
+ * read the server hands every complete request to the sink and queues one
+ * ack covering all of them; acks which cannot be written at once are
+ * coalesced, so a slow client only ever gets the latest count. A request
+ * is accepted once it is in the ring, on its way to the workers. When the 
+ * ring is full, the connection whose request did not fit keeps its 
+ * undecoded bytes and is not read again until the feeder makes room, which
+ * pushes back on that client through TCP while the others are still served.
+ * A request with an unknown account closes its connection.
+ */
+public class TransactionServer {
+	
+	static final int READ_BUFFER_BYTES = BinaryTransactionFile.RECORD_BYTES << 12;
+	static final int ACK_BYTES = 8;
+	static final long SELECT_MS = 10;
+	static final int RING_CAPACITY = 1 << 14;
+	
+	/**
+	 * State of one client connection, attached to its SelectionKey.
+	 */
+	private static class Connection {
+		final ByteBuffer in  = ByteBuffer.allocateDirect(READ_BUFFER_BYTES)
+										 .order(BinaryTransactionFile.ORDER);
+		final ByteBuffer ack = ByteBuffer.allocateDirect(ACK_BYTES)
+										 .order(BinaryTransactionFile.ORDER);
+		long accepted; // requests put in the ring
+		long acked;    // requests covered by the last ack queued
+		boolean stalled; // waiting for room in the ring, not reading
+		boolean eof;     // the client is done sending
+		
+		Connection() {
+			ack.flip(); // nothing to write yet
+		}
+	}
+	
+	private final int numAccounts;
+	private final long idleMs;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final TransactionRing ring;
+	private final Feeder feeder;
+	private ArrayList<SelectionKey> stalledKeys, spareKeys;
+	private volatile boolean stalled; // some connection waits for the feeder
+	private int open;
+	private long connections, requests, acks, refused, stalls;
+	
+	/**
+	 * Binds to the port on the loopback interface.
+	 * @param port port to listen on, or 0 for any free port
+	 * @param sink receives every accepted request, on the feeder thread
+	 * @param numAccounts requests must name accounts below this
+	 * @param idleMs stop once no client has been connected for this long;
+	 * 0 serves forever
+	 */
+	public TransactionServer(int port, TransactionSink sink, int numAccounts,
+			long idleMs) throws IOException {
+		this.numAccounts = numAccounts;
+		this.idleMs      = idleMs;
+		ring        = new TransactionRing(RING_CAPACITY);
+		feeder      = new Feeder(sink);
+		stalledKeys = new ArrayList<SelectionKey>();
+		spareKeys   = new ArrayList<SelectionKey>();
+		selector = Selector.open();
+		server   = ServerSocketChannel.open();
+		server.bind( new InetSocketAddress(InetAddress.getLoopbackAddress(), port) );
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+	
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) server.getLocalAddress()).getPort();
+	}
+	
+	/**
+	 * Drains the ring into the sink, flushing the sink whenever the ring is
+	 * empty, until it takes the end marker. Wakes the selector when it made
+	 * room for a stalled connection.
+	 */
+	private class Feeder extends Thread {
+		private final TransactionSink sink;
+		private volatile Exception failure;
+		
+		public Feeder(TransactionSink sink) {
+			super("server-feeder");
+			this.sink = sink;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					long pos = ring.tryAcquire();
+					if (pos < 0) {
+						sink.flush(); // quiet, so hand over anything buffered
+						pos = ring.acquire();
+					}
+					int from   = ring.getFrom(pos);
+					int to     = ring.getTo(pos);
+					int amount = ring.getAmount(pos);
+					ring.release(pos);
+					if (stalled) selector.wakeup();
+					if (from < 0) break; // end marker
+					sink.accept(from, to, amount);
+				}
+				sink.flush();
+			} catch (Exception e) {
+				failure = e;
+				selector.wakeup();
+			}
+		}
+	}
+	
+	/**
+	 * Serves clients until none has been connected for idleMs, then closes
+	 * every channel and waits for the feeder to pass every accepted request
+	 * to the sink.
+	 * @return the number of requests accepted
+	 */
+	public long run() throws IOException, InterruptedException {
+		long lastActive = System.nanoTime();
+		feeder.start();
+		try {
+			while (true) {
+				selector.select(SELECT_MS);
+				if (feeder.failure != null) {
+					throw new RuntimeException("Server feeder failed", 
+											   feeder.failure);
+				}
+				if (!stalledKeys.isEmpty()) resume();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					if (key.isReadable()) read(key);
+					if (key.isValid() && key.isWritable()) write(key);
+				}
+				
+				if (open > 0) {
+					lastActive = System.nanoTime();
+				} else if (idleMs > 0 &&
+						   System.nanoTime() - lastActive > idleMs * 1000000L) {
+					break;
+				}
+			}
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+			while (feeder.isAlive() && !ring.tryPut(-1, -1, 0)) {
+				Thread.yield(); // the feeder is still making room
+			}
+			feeder.join();
+		}
+		return requests;
+	}
+	
+	/**
+	 * Retries every stalled connection's undecoded requests, reading from 
+	 * it again once they all fit in the ring.
+	 */
+	private void resume() throws IOException {
+		stalled = false;
+		ArrayList<SelectionKey> keys = stalledKeys;
+		stalledKeys = spareKeys;
+		spareKeys   = keys;
+		for (SelectionKey key : keys) {
+			if (!key.isValid()) continue;
+			Connection conn = (Connection) key.attachment();
+			conn.stalled = false;
+			if (!decode(key)) continue;
+			if (!conn.stalled && !conn.eof) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+			write(key);
+		}
+		keys.clear();
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.register(selector, SelectionKey.OP_READ, new Connection());
+		open++;
+		connections++;
+	}
+	
+	/**
+	 * Reads what the client sent, passes on every complete request that
+	 * fits in the ring, and queues one ack for all of them.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
+		int read;
+		try {
+			read = channel.read(conn.in);
+		} catch (IOException e) {
+			close(key); // reset by the client
+			return;
+		}
+		
+		if (!decode(key)) return;
+		if (read < 0) {
+			// The client is done sending; close once the final ack is out
+			conn.eof = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		write(key);
+	}
+	
+	/**
+	 * Puts the complete requests in the connection's buffer in the ring. 
+	 * If the ring fills up, stops reading from the connection and keeps 
+	 * the rest of the buffer for resume().
+	 * @return false if a request was refused and the connection closed
+	 */
+	private boolean decode(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		ByteBuffer in = conn.in;
+		in.flip();
+		while (in.remaining() >= BinaryTransactionFile.RECORD_BYTES) {
+			int pos    = in.position();
+			int from   = in.getInt(pos);
+			int to     = in.getInt(pos + 4);
+			int amount = in.getInt(pos + 8);
+			if (from < 0 || from >= numAccounts || to < 0 || to >= numAccounts) {
+				System.err.println("server: refused " + from + " -> " + to +
+								   ", closing connection");
+				refused++;
+				close(key);
+				return false;
+			}
+			if (!ring.tryPut(from, to, amount)) {
+				conn.stalled = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				stalledKeys.add(key);
+				stalled = true;
+				stalls++;
+				break;
+			}
+			in.position(pos + BinaryTransactionFile.RECORD_BYTES);
+			conn.accepted++;
+			requests++;
+		}
+		in.compact();
+		return true;
+	}
+	
+	/**
+	 * Writes the pending ack, starting a new one for the latest count once
+	 * it is out. Waits for OP_WRITE while the socket buffer is full.
+	 */
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
+		try {
+			while (true) {
+				if (!conn.ack.hasRemaining()) {
+					if (conn.acked == conn.accepted) break;
+					conn.ack.clear();
+					conn.ack.putLong(conn.accepted).flip();
+					conn.acked = conn.accepted;
+					acks++;
+				}
+				if (channel.write(conn.ack) == 0) break;
+			}
+		} catch (IOException e) {
+			close(key); // the client went away
+			return;
+		}
+		
+		if (conn.ack.hasRemaining()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		} else if (conn.eof && !conn.stalled) {
+			close(key);
+		} else {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+	
+	private void close(SelectionKey key) throws IOException {
+		key.cancel();
+		key.channel().close();
+		open--;
+	}
+	
+	/**
+	 * Prints the number of connections, requests, acks, refused requests,
+	 * and times a connection stalled on a full ring to stderr.
+	 */
+	public void printStats() {
+		System.err.printf("server: %d connections, %d requests, %d acks " +
+				"(%.1f requests per ack), %d refused, %d stalls%n", connections,
+				requests, acks, acks == 0 ? 0.0 : (double) requests / acks, 
+				refused, stalls);
+	}
+}
@@ -0,0 +1,26 @@
+package assign4;
+
+/**
+ * Destination for parsed transactions. Loaders hand each transaction over
+ * as three primitives, leaving it to the sink to decide whether and how 
+ * they are packaged for the workers. Unless documented otherwise a sink may
+ * be shared by several producer threads.
+ */
+public interface TransactionSink {
+
+	/**
+	 * Accepts one transaction, blocking if the sink is full.
+	 * @param from ID of the account to withdraw from
+	 * @param to ID of the account to deposit into
+	 * @param amount the amount to move
+	 * @throws InterruptedException if interrupted while waiting for space
+	 */
+	public void accept(int from, int to, int amount) throws InterruptedException;
+	
+	/**
+	 * Hands over any transactions the sink is still buffering. Producers 
+	 * call this once they have no more transactions to accept.
+	 * @throws InterruptedException if interrupted while waiting for space
+	 */
+	public void flush() throws InterruptedException;
+}
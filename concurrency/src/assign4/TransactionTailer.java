@@ -0,0 +1,146 @@
+package assign4;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads "from to amount" transaction lines from a stream which may keep
+ * growing, such as a log file still being appended to or stdin, and hands
+ * each one to a TransactionSink as soon as its line is complete. Lines
+ * follow the same rules as the other loaders.
+ *
+ * When following, reaching the end of the stream is not the end of input:
+ * the tailer flushes the sink, keeps any partial line, and polls again
+ * every POLL_MS until more bytes arrive, stopping only once nothing has
+ * arrived for idleMs (if idleMs > 0). Otherwise the end of the stream ends
+ * the input, and a final line without a newline is parsed too.
+ */
+public class TransactionTailer {
+	
+	static final int BUFFER_BYTES = 1 << 16;
+	static final long POLL_MS     = 10;
+	
+	private final InputStream in;
+	private final TransactionSink sink;
+	private final boolean follow;
+	private final long idleMs;
+	private final byte[] buffer;
+	private final int[] fields; // from, to, amount of the current line
+	private long count;
+	
+	/**
+	 * @param in the stream to read transaction lines from
+	 * @param sink receives each transaction once its line is complete
+	 * @param follow whether to wait for more input at the end of the stream
+	 * @param idleMs when following, stop after this long without input; 0
+	 * follows forever
+	 */
+	public TransactionTailer(InputStream in, TransactionSink sink,
+			boolean follow, long idleMs) {
+		this.in     = in;
+		this.sink   = sink;
+		this.follow = follow;
+		this.idleMs = idleMs;
+		buffer = new byte[BUFFER_BYTES];
+		fields = new int[3];
+		count  = 0;
+	}
+	
+	/**
+	 * Reads and passes on transactions until the input ends.
+	 * @return the number of transactions read
+	 */
+	public long run() throws IOException, InterruptedException {
+		int filled = 0;
+		long lastInput = System.nanoTime();
+		
+		while (true) {
+			int read = in.read(buffer, filled, buffer.length - filled);
+			if (read > 0) {
+				filled += read;
+				lastInput = System.nanoTime();
+				
+				// Pass on every complete line and keep the partial one
+				int consumed = parseLines(filled);
+				if (consumed == 0 && filled == buffer.length) {
+					throw new RuntimeException("Line exceeds " + BUFFER_BYTES +
+											   " bytes");
+				}
+				System.arraycopy(buffer, consumed, buffer, 0, filled - consumed);
+				filled -= consumed;
+				continue;
+			}
+			
+			// At the end of the stream for now, so apply what has been read
+			sink.flush();
+			if (read < 0 && !follow) break;
+			if (idleMs > 0 && System.nanoTime() - lastInput >
+							  TimeUnit.MILLISECONDS.toNanos(idleMs)) break;
+			TimeUnit.MILLISECONDS.sleep(POLL_MS);
+		}
+		
+		if (filled > 0) {
+			parseLine(0, filled); // final line without a newline
+			sink.flush();
+		}
+		return count;
+	}
+	
+	/**
+	 * @return the number of transactions read so far
+	 */
+	public long getCount() {
+		return count;
+	}
+	
+	/**
+	 * Parses the complete lines in the first limit bytes of the buffer.
+	 * @return the number of bytes consumed, up to the last newline
+	 */
+	private int parseLines(int limit) throws InterruptedException {
+		int lineStart = 0;
+		for (int i = 0; i < limit; i++) {
+			if (buffer[i] == '\n') {
+				parseLine(lineStart, i);
+				lineStart = i + 1;
+			}
+		}
+		return lineStart;
+	}
+	
+	/**
+	 * Parses the line in buffer[start, end), without its newline, and
+	 * passes its transaction to the sink.
+	 */
+	private void parseLine(int start, int end) throws InterruptedException {
+		if (end > start && buffer[end - 1] == '\r') end--;
+		
+		int field = 0, pos = start;
+		while (pos <= end) {
+			// One integer per field, each followed by a space, tab or the end
+			boolean negative = (pos < end && buffer[pos] == '-');
+			if (negative) pos++;
+			int fieldStart = pos;
+			long value = 0;
+			while (pos < end && buffer[pos] >= '0' && buffer[pos] <= '9') {
+				value = value * 10 + (buffer[pos++] - '0');
+				if (value > Integer.MAX_VALUE + 1L) break;
+			}
+			if (pos == fieldStart || field == 3 || (pos < end &&
+					buffer[pos] != ' ' && buffer[pos] != '\t') ||
+					value > Integer.MAX_VALUE + (negative ? 1L : 0L)) {
+				throw new RuntimeException("3 values expected for all input " +
+						"lines, got '" + new String(buffer, start, end - start) + "'");
+			}
+			fields[field++] = (int) (negative ? -value : value);
+			pos++; // skip the separator
+		}
+		if (field != 3) {
+			throw new RuntimeException("3 values expected for all input " +
+					"lines, got '" + new String(buffer, start, end - start) + "'");
+		}
+		sink.accept(fields[0], fields[1], fields[2]);
+		count++;
+	}
+}
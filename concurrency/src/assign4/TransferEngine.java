@@ -0,0 +1,46 @@
+package assign4;
+
+/**
+ * Strategy used by the Bank's TransactionWorkers to move money between
+ * accounts. Implementations own the account state and must be safe to call
+ * from any number of workers at once.
+ */
+public interface TransferEngine extends AccountView {
+
+	/**
+	 * Withdraws amount from the from account and deposits it into the to
+	 * account, incrementing the number of transactions for both.
+	 * @param from ID of the account to withdraw from
+	 * @param to ID of the account to deposit into
+	 * @param amount the amount to move
+	 */
+	public void transfer(int from, int to, int amount);
+	
+	/**
+	 * Applies count transfers from the from account to the to account whose
+	 * amounts add up to amount, as one movement of amount which increments
+	 * the number of transactions for both accounts by count.
+	 * @param from ID of the account to withdraw from
+	 * @param to ID of the account to deposit into
+	 * @param amount the net amount to move
+	 * @param count the number of transfers being applied
+	 */
+	public void transferNet(int from, int to, int amount, int count);
+	
+	/**
+	 * Applies a multi-leg transaction atomically: leg i withdraws amounts[i]
+	 * from the from account and deposits it into toAccounts[i], counting 
+	 * as one transaction for both accounts.
+	 * @param from ID of the account to withdraw every leg from
+	 * @param toAccounts ID of the account to deposit into, per leg
+	 * @param amounts the amount to move, per leg
+	 */
+	public void transferLegs(int from, int[] toAccounts, int[] amounts);
+	
+	/**
+	 * Overwrites the balance and number of transactions of an account. Only
+	 * called before any worker starts, e.g. to load recovered state.
+	 * @param id the account ID
+	 */
+	public void restore(int id, long balance, long transactions);
+}
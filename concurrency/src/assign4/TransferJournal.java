@@ -0,0 +1,471 @@
+package assign4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable append-only journal of applied transfers with group commit and
+ * periodic balance checkpoints, kept in a directory holding two files:
+ * 
+ *   journal    - a sequence of groups, each a GROUP_HEADER (first sequence
+ *                number, record count, CRC32C of the records) followed by
+ *                12 byte from/to/amount records
+ *   checkpoint - balances and transaction counts of every account as of a
+ *                sequence number, plus the journal offset to replay from
+ * 
+ * Workers append records into a shared in-memory buffer, waking the writer
+ * only when the buffer stops being empty. A single writer thread swaps 
+ * that buffer for an empty one, writes the whole group and 
+ * calls FileChannel.force once for it, so one force covers every append 
+ * made while the previous force was in progress. After each commit the 
+ * writer applies the group to its own shadow copy of the balances, which 
+ * therefore always matches the journal exactly, and every checkpointEvery
+ * transfers it writes that copy out as a new checkpoint.
+ * 
+ * On open, the latest checkpoint is loaded and the journal tail after it 
+ * is replayed into the shadow copy, stopping at the first torn or corrupt
+ * group. Recovery time is therefore bounded by the checkpoint frequency.
+ * 
+ * By default appends return immediately and a crash may lose the group 
+ * being committed; with sync set, append waits until its record is durable.
+ */
+public class TransferJournal implements AccountView {
+
+	static final String JOURNAL_FILE    = "journal";
+	static final String CHECKPOINT_FILE = "checkpoint";
+	
+	private static final byte[] CHECKPOINT_MAGIC = 
+			{ 'B', 'A', 'N', 'K', 'C', 'K', 'P', '1' };
+	private static final int GROUP_HEADER  = 16;
+	private static final int RECORD_BYTES  = BinaryTransactionFile.RECORD_BYTES;
+	private static final int BUFFER_BYTES  = RECORD_BYTES << 16;
+	private static final ByteOrder ORDER   = ByteOrder.LITTLE_ENDIAN;
+	
+	private final Path dir;
+	private final FileChannel channel;
+	private final long checkpointEvery;
+	private final boolean sync;
+	private final long[] balances;     // shadow state, writer thread only
+	private final long[] transactions;
+	private final Object lock = new Object();
+	private final Thread writer;
+	
+	// Guarded by lock
+	private ByteBuffer active, standby;
+	private long nextSeq;      // sequence number of the next append
+	private long durableSeq;   // all records below this are committed
+	private boolean closed;
+	private Throwable failure; // stops the writer, fails appends and close
+	
+	// Writer thread only
+	private long checkpointSeq;
+	private long numGroups;
+	
+	/**
+	 * Opens the journal in dir, creating it if needed, and recovers the 
+	 * account state from the latest checkpoint and the journal tail.
+	 * @param dir the journal directory
+	 * @param numAccounts number of accounts, which must match the checkpoint
+	 * @param initBalance balance of every account in a new journal
+	 * @param checkpointEvery transfers between checkpoints
+	 * @param sync whether appends wait for their group to be committed
+	 */
+	public TransferJournal(String dir, int numAccounts, long initBalance, 
+			long checkpointEvery, boolean sync) throws IOException {
+		this.dir = Paths.get(dir);
+		this.checkpointEvery = Math.max(1, checkpointEvery);
+		this.sync = sync;
+		Files.createDirectories(this.dir);
+		
+		balances     = new long[numAccounts];
+		transactions = new long[numAccounts];
+		for (int i = 0; i < numAccounts; i++) {
+			balances[i] = initBalance;
+		}
+		
+		// Recover: checkpoint first, then the journal from its offset
+		long start  = System.nanoTime();
+		long offset = readCheckpoint();
+		channel = FileChannel.open( this.dir.resolve(JOURNAL_FILE), 
+				StandardOpenOption.CREATE, StandardOpenOption.READ, 
+				StandardOpenOption.WRITE );
+		long replayed = replay(offset);
+		System.err.printf("journal: recovered to seq %d (checkpoint %d), " + 
+				"replayed %d transfers in %.1f ms%n", nextSeq, checkpointSeq, 
+				replayed, (System.nanoTime() - start) / 1e6);
+		
+		durableSeq = nextSeq;
+		active     = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ORDER);
+		standby    = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ORDER);
+		closed     = false;
+		
+		writer = new Thread("journal-writer") {
+			@Override
+			public void run() {
+				writeGroups();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Appends one applied transfer to the journal. Blocks while the buffer 
+	 * is full, and, in sync mode, until the record has been committed.
+	 */
+	public void append(int from, int to, int amount) {
+		synchronized (lock) {
+			try {
+				while (active.remaining() < RECORD_BYTES && failure == null) {
+					lock.wait();
+				}
+				checkFailure();
+				boolean wasEmpty = active.position() == 0;
+				active.putInt(from).putInt(to).putInt(amount);
+				long seq = nextSeq++;
+				if (wasEmpty) lock.notifyAll(); // the writer may be waiting
+				
+				while (sync && durableSeq <= seq && failure == null) {
+					lock.wait();
+				}
+				checkFailure();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Appends one record per leg of a multi-leg transfer. All legs go into 
+	 * the same buffer, so they are committed, and recovered, as one group.
+	 */
+	public void appendLegs(int from, int[] toAccounts, int[] amounts) {
+		int bytes = amounts.length * RECORD_BYTES;
+		if (bytes > BUFFER_BYTES) {
+			throw new RuntimeException("Too many legs to journal atomically");
+		}
+		synchronized (lock) {
+			try {
+				while (active.remaining() < bytes && failure == null) {
+					lock.wait();
+				}
+				checkFailure();
+				boolean wasEmpty = active.position() == 0;
+				for (int i = 0; i < amounts.length; i++) {
+					active.putInt(from).putInt(toAccounts[i]).putInt(amounts[i]);
+				}
+				nextSeq += amounts.length;
+				long seq = nextSeq - 1;
+				if (wasEmpty) lock.notifyAll(); // the writer may be waiting
+				
+				while (sync && durableSeq <= seq && failure == null) {
+					lock.wait();
+				}
+				checkFailure();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Commits everything appended so far, writes a final checkpoint, and
+	 * closes the journal.
+	 */
+	public void close() throws IOException {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw new IOException("Journal write failed", failure);
+		}
+		writeCheckpoint();
+		channel.close();
+		System.err.printf("journal: %d transfers in %d group commits%n", 
+				durableSeq, numGroups);
+	}
+	
+	private void checkFailure() {
+		if (failure != null) {
+			throw new RuntimeException("Journal write failed", failure);
+		}
+	}
+	
+	/**
+	 * Writer thread loop: waits for appends, swaps buffers, and commits the
+	 * swapped-out buffer as one group until closed and drained. Any failure
+	 * is recorded, so appenders waiting on the writer fail instead of
+	 * blocking forever, and close() does not checkpoint stale balances.
+	 */
+	private void writeGroups() {
+		try {
+			while (true) {
+				ByteBuffer group;
+				long firstSeq, count;
+				synchronized (lock) {
+					while (active.position() == 0 && !closed) {
+						lock.wait();
+					}
+					if (active.position() == 0) break; // closed and drained
+					
+					group    = active;
+					active   = standby;
+					standby  = group;
+					count    = group.position() / RECORD_BYTES;
+					firstSeq = nextSeq - count;
+					lock.notifyAll(); // room for blocked appenders
+				}
+				
+				commit(group, firstSeq, (int) count);
+				
+				synchronized (lock) {
+					durableSeq = firstSeq + count;
+					lock.notifyAll(); // wake sync appenders
+				}
+				if (durableSeq - checkpointSeq >= checkpointEvery) {
+					writeCheckpoint();
+				}
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (Throwable e) {
+			synchronized (lock) {
+				failure = e;
+				lock.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Writes one group and forces it to disk, then applies it to the shadow
+	 * balances and clears the buffer.
+	 */
+	private void commit(ByteBuffer group, long firstSeq, int count) 
+			throws IOException {
+		group.flip();
+		CRC32C crc = new CRC32C();
+		crc.update( group.duplicate() );
+		
+		ByteBuffer header = ByteBuffer.allocate(GROUP_HEADER).order(ORDER);
+		header.putLong(firstSeq).putInt(count).putInt( (int) crc.getValue() );
+		header.flip();
+		writeFully(header);
+		writeFully( group.duplicate() );
+		channel.force(false);
+		numGroups++;
+		
+		apply(group, count);
+		group.clear();
+	}
+	
+	/**
+	 * Reads from the journal at offset until buffer is full.
+	 */
+	private void readFully(ByteBuffer buffer, long offset) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position() - start) < 0) {
+				throw new IOException("Unexpected end of journal");
+			}
+		}
+	}
+	
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+	
+	/**
+	 * Applies count records starting at the buffer's position to the 
+	 * shadow balances.
+	 */
+	private void apply(ByteBuffer records, int count) {
+		int from, to, amount;
+		for (int i = 0; i < count; i++) {
+			from   = records.getInt();
+			to     = records.getInt();
+			amount = records.getInt();
+			balances[from] -= amount;
+			transactions[from]++;
+			balances[to] += amount;
+			transactions[to]++;
+		}
+	}
+	
+	/**
+	 * Replays every valid group at or after offset into the shadow balances,
+	 * truncating the journal after the last valid group.
+	 * @return the number of transfers replayed
+	 */
+	private long replay(long offset) throws IOException {
+		long replayed = 0, size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(GROUP_HEADER).order(ORDER);
+		ByteBuffer group  = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ORDER);
+		
+		while (offset + GROUP_HEADER <= size) {
+			header.clear();
+			readFully(header, offset);
+			header.flip();
+			long firstSeq = header.getLong();
+			int count     = header.getInt();
+			int checksum  = header.getInt();
+			long bytes    = (long) count * RECORD_BYTES;
+			if (firstSeq != nextSeq || count <= 0 || bytes > BUFFER_BYTES || 
+					offset + GROUP_HEADER + bytes > size) {
+				break; // torn or foreign group
+			}
+			
+			group.clear().limit((int) bytes);
+			readFully(group, offset + GROUP_HEADER);
+			group.flip();
+			CRC32C crc = new CRC32C();
+			crc.update( group.duplicate() );
+			if ((int) crc.getValue() != checksum) break; // corrupt group
+			
+			apply(group, count);
+			nextSeq  += count;
+			replayed += count;
+			offset   += GROUP_HEADER + bytes;
+		}
+		
+		channel.truncate(offset);
+		channel.position(offset);
+		return replayed;
+	}
+	
+	/**
+	 * Loads the checkpoint, if there is a valid one, into the shadow 
+	 * balances and sets nextSeq to its sequence number.
+	 * @return the journal offset to replay from
+	 */
+	private long readCheckpoint() throws IOException {
+		nextSeq       = 0;
+		checkpointSeq = 0;
+		Path path = dir.resolve(CHECKPOINT_FILE);
+		if (!Files.exists(path)) return 0;
+		
+		FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer buf = ByteBuffer.allocateDirect( (int) in.size() )
+									   .order(ORDER);
+			while (buf.hasRemaining() && in.read(buf) >= 0) {
+				continue;
+			}
+			buf.flip();
+			
+			byte[] magic = new byte[CHECKPOINT_MAGIC.length];
+			buf.get(magic);
+			long seq    = buf.getLong();
+			long offset = buf.getLong();
+			int size    = buf.getInt();
+			if (!Arrays.equals(magic, CHECKPOINT_MAGIC) || 
+					size != balances.length) {
+				throw new RuntimeException("Checkpoint in " + dir + 
+						" does not match " + balances.length + " accounts");
+			}
+			ByteBuffer body = buf.duplicate();
+			body.position(0).limit(buf.limit() - 8);
+			CRC32C crc = new CRC32C();
+			crc.update(body);
+			
+			for (int i = 0; i < size; i++) {
+				balances[i]     = buf.getLong();
+				transactions[i] = buf.getLong();
+			}
+			if (buf.getLong() != crc.getValue()) {
+				throw new RuntimeException("Corrupt checkpoint in " + dir);
+			}
+			nextSeq       = seq;
+			checkpointSeq = seq;
+			return offset;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Writes the shadow balances as of durableSeq to a temporary file, 
+	 * forces it, and atomically renames it over the previous checkpoint.
+	 * Only called from the writer thread, or once it has stopped.
+	 */
+	private void writeCheckpoint() throws IOException {
+		long seq    = durableSeq;
+		long offset = channel.position();
+		Path tmp    = dir.resolve(CHECKPOINT_FILE + ".tmp");
+		
+		FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			CRC32C crc = new CRC32C();
+			ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ORDER);
+			buf.put(CHECKPOINT_MAGIC).putLong(seq).putLong(offset)
+			   .putInt(balances.length);
+			for (int i = 0; i < balances.length; i++) {
+				if (buf.remaining() < 16) {
+					flushTo(out, buf, crc);
+				}
+				buf.putLong(balances[i]).putLong(transactions[i]);
+			}
+			flushTo(out, buf, crc);
+			buf.putLong( crc.getValue() );
+			buf.flip();
+			while (buf.hasRemaining()) {
+				out.write(buf);
+			}
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp, dir.resolve(CHECKPOINT_FILE), 
+				   StandardCopyOption.ATOMIC_MOVE, 
+				   StandardCopyOption.REPLACE_EXISTING);
+		checkpointSeq = seq;
+	}
+	
+	private static void flushTo(FileChannel out, ByteBuffer buf, CRC32C crc) 
+			throws IOException {
+		buf.flip();
+		crc.update( buf.duplicate() );
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		buf.clear();
+	}
+	
+	@Override
+	public int numAccounts() {
+		return balances.length;
+	}
+	
+	/**
+	 * Recovered balance; only meaningful before the first append.
+	 */
+	@Override
+	public long getBalance(int id) {
+		return balances[id];
+	}
+	
+	/**
+	 * Recovered transaction count; only meaningful before the first append.
+	 */
+	@Override
+	public long getTransactions(int id) {
+		return transactions[id];
+	}
+}
@@ -0,0 +1,298 @@
+package assign4;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Execution mode which runs transactions without any locks by scheduling 
+ * them into conflict-free "waves". Producers collect transactions into a
+ * window, and each full window is greedily coloured: every transaction goes
+ * into the first wave in which neither of its accounts is used yet. The 
+ * workers then run one wave at a time, splitting it between themselves, 
+ * with a barrier between waves. Since no two transactions in a wave share
+ * an account, balances are plain primitive arrays.
+ * 
+ * Each account's wave membership is tracked in a single long bitmask, so a
+ * window holds at most MAX_WAVES waves; a transaction that fits in none of
+ * them closes the window early.
+ */
+public class WaveExecutor implements TransactionExecutor {
+
+	static final int DEFAULT_WINDOW = 4096;
+	static final int MAX_WAVES      = 64;
+	
+	private static final Window END = new Window(0, 0);
+	
+	private final int numWorkers;
+	private final int windowSize;
+	private final long[] balances;
+	private final long[] transactions;
+	private final BlockingQueue<Window> ready;
+	private final BlockingQueue<Window> free;
+	private final CyclicBarrier barrier;
+	private final CountDownLatch latch;
+	
+	// Written by the barrier action only, read by workers after the barrier
+	private Window current;
+	private int wave;
+	private long numWindows, numWaves, numTransactions;
+	private long startNanos, endNanos;
+	
+	/**
+	 * @param numAccounts total number of accounts, each with INIT_BALANCE
+	 * @param numWorkers number of worker threads sharing each wave
+	 * @param windowSize transactions per window, or DEFAULT_WINDOW if < 2
+	 * @param latch counted down once by each worker when it is done
+	 */
+	public WaveExecutor(int numAccounts, int numWorkers, int windowSize, 
+			CountDownLatch latch) {
+		this.numWorkers = numWorkers;
+		this.windowSize = (windowSize > 1) ? windowSize : DEFAULT_WINDOW;
+		this.latch      = latch;
+		
+		balances     = new long[numAccounts];
+		transactions = new long[numAccounts];
+		for (int i = 0; i < numAccounts; i++) {
+			balances[i] = Bank.INIT_BALANCE;
+		}
+		
+		ready   = new ArrayBlockingQueue<Window>(2);
+		free    = new ArrayBlockingQueue<Window>(4);
+		barrier = new CyclicBarrier(numWorkers, new Runnable() {
+			public void run() {
+				advance();
+			}
+		});
+		current = null;
+	}
+	
+	/**
+	 * Calls .start() on numWorkers WaveWorkers
+	 */
+	@Override
+	public void start() {
+		startNanos = System.nanoTime();
+		for (int i = 0; i < numWorkers; i++) {
+			new WaveWorker(i).start();
+		}
+	}
+	
+	/**
+	 * Returns a sink which fills and schedules windows. Each producer thread
+	 * needs its own sink.
+	 */
+	@Override
+	public TransactionSink newSink() {
+		return new WindowSink();
+	}
+	
+	@Override
+	public void finish() throws InterruptedException {
+		ready.put(END);
+	}
+	
+	/**
+	 * @return average number of transactions run in parallel per wave
+	 */
+	public double getAverageWaveWidth() {
+		return (numWaves == 0) ? 0 : (double) numTransactions / numWaves;
+	}
+	
+	/**
+	 * Prints the number of windows and waves, the average wave width and
+	 * the transfer throughput.
+	 */
+	@Override
+	public void printStats() {
+		double seconds = Math.max(endNanos - startNanos, 1) / 1e9;
+		System.err.printf("waves: %d transactions in %d windows, %d waves, " + 
+				"avg width %.2f, %.0f transfers/s%n", numTransactions, 
+				numWindows, numWaves, getAverageWaveWidth(), 
+				numTransactions / seconds);
+	}
+	
+	@Override
+	public int numAccounts() {
+		return balances.length;
+	}
+	
+	/**
+	 * Only consistent once the workers are done.
+	 */
+	@Override
+	public long getBalance(int id) {
+		return balances[id];
+	}
+	
+	/**
+	 * Only consistent once the workers are done.
+	 */
+	@Override
+	public long getTransactions(int id) {
+		return transactions[id];
+	}
+	
+	/**
+	 * Barrier action, run by the last worker to arrive: moves on to the next
+	 * wave of the current window, or to the next scheduled window.
+	 */
+	private void advance() {
+		if (current != null && wave + 1 < current.numWaves) {
+			wave++;
+			return;
+		}
+		try {
+			if (current != null) free.offer(current); // recycle if room
+			current = ready.take();
+			wave    = 0;
+			if (current == END) {
+				endNanos = System.nanoTime();
+			} else {
+				numWindows++;
+				numWaves        += current.numWaves;
+				numTransactions += current.size;
+			}
+		} catch (InterruptedException e) {
+			current = END;
+		}
+	}
+	
+	/**
+	 * A window of transactions, ordered by wave once it has been scheduled.
+	 */
+	private static class Window {
+		final int[] fromAccounts, toAccounts, amounts, waves;
+		final int[] order;     // entry indices, sorted by wave
+		final int[] waveStart; // wave w is order[waveStart[w], waveStart[w+1])
+		int size, numWaves;
+		
+		public Window(int capacity, int maxWaves) {
+			fromAccounts = new int[capacity];
+			toAccounts   = new int[capacity];
+			amounts      = new int[capacity];
+			waves        = new int[capacity];
+			order        = new int[capacity];
+			waveStart    = new int[maxWaves + 1];
+		}
+	}
+	
+	/**
+	 * Worker thread which carries out its share of every wave: entries 
+	 * worker, worker + numWorkers, ... of the wave.
+	 */
+	private class WaveWorker extends Thread {
+		private final int worker;
+		
+		public WaveWorker(int worker) {
+			this.worker = worker;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				Window window;
+				int entry, from, to, amount;
+				
+				while (true) {
+					barrier.await();
+					window = current;
+					if (window == END) break; // done
+					
+					int stop = window.waveStart[wave + 1];
+					for (int i = window.waveStart[wave] + worker; i < stop; 
+							i += numWorkers) {
+						entry  = window.order[i];
+						from   = window.fromAccounts[entry];
+						to     = window.toAccounts[entry];
+						amount = window.amounts[entry];
+						
+						balances[from] -= amount;
+						transactions[from]++;
+						balances[to] += amount;
+						transactions[to]++;
+					}
+				}
+				latch.countDown(); // signal done
+				
+			} catch (InterruptedException e) { 
+				e.printStackTrace(); 
+			} catch (BrokenBarrierException e) { 
+				e.printStackTrace(); 
+			}
+		}
+	}
+	
+	/**
+	 * Producer-side sink which fills a window, colouring each transaction
+	 * into the first wave free for both its accounts, and hands the window
+	 * to the workers once it is full or no wave is free.
+	 */
+	private class WindowSink implements TransactionSink {
+		private final long[] waveMasks; // waves used by each account
+		private final int[] next;       // next order slot for each wave
+		private Window window;
+		
+		public WindowSink() {
+			waveMasks = new long[balances.length];
+			next      = new int[MAX_WAVES];
+			window    = newWindow();
+		}
+		
+		@Override
+		public void accept(int from, int to, int amount) 
+				throws InterruptedException {
+			int w = Long.numberOfTrailingZeros(~(waveMasks[from] | waveMasks[to]));
+			if (w == MAX_WAVES) { // no free wave left in this window
+				send();
+				w = 0;
+			}
+			waveMasks[from] |= 1L << w;
+			waveMasks[to]   |= 1L << w;
+			
+			int i = window.size++;
+			window.fromAccounts[i] = from;
+			window.toAccounts[i]   = to;
+			window.amounts[i]      = amount;
+			window.waves[i]        = w;
+			window.numWaves        = Math.max(window.numWaves, w + 1);
+			
+			if (window.size == windowSize) send();
+		}
+		
+		@Override
+		public void flush() throws InterruptedException {
+			if (window.size > 0) send();
+		}
+		
+		/**
+		 * Sorts the window's entries by wave, clears the wave masks of the
+		 * accounts it used, and hands it to the workers.
+		 */
+		private void send() throws InterruptedException {
+			int[] start = window.waveStart;
+			for (int w = 0; w <= window.numWaves; w++) start[w] = 0;
+			for (int i = 0; i < window.size; i++) start[window.waves[i] + 1]++;
+			for (int w = 0; w < window.numWaves; w++) start[w + 1] += start[w];
+			
+			System.arraycopy(start, 0, next, 0, window.numWaves);
+			for (int i = 0; i < window.size; i++) {
+				window.order[ next[window.waves[i]]++ ] = i;
+				waveMasks[window.fromAccounts[i]] = 0;
+				waveMasks[window.toAccounts[i]]   = 0;
+			}
+			ready.put(window);
+			window = newWindow();
+		}
+		
+		private Window newWindow() {
+			Window w = free.poll();
+			if (w == null) w = new Window(windowSize, MAX_WAVES);
+			w.size     = 0;
+			w.numWaves = 0;
+			return w;
+		}
+	}
+}